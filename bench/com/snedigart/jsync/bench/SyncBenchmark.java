@@ -0,0 +1,388 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.snedigart.jsync.SyncOptions;
+import com.snedigart.jsync.SyncResults;
+import com.snedigart.jsync.Syncer;
+import com.snedigart.jsync.bench.TreeGenerator.Shape;
+
+/**
+ * Macro benchmark. For each requested tree shape, generates a synthetic source
+ * tree and times three full synchronize passes: a first sync into an empty
+ * target ("cold"), a resync with nothing changed ("noop") and a resync after
+ * changing a fraction of the files ("incremental"). Each pass records
+ * throughput, the SyncResults counts and timings, peak heap, GC activity and,
+ * on Linux, syscall and byte counts from /proc/self/io. Results are written
+ * as JSON. Note that "cold" means an empty target, not a cold page cache; drop
+ * the caches between runs externally if that is what should be measured.
+ * <p>
+ * Usage: SyncBenchmark --dir /scratch [--out results.json]
+ * [--shapes tiny,deep,wide,huge,mixed] [--files n] [--size bytes]
+ * [--change-rate 0.01] [--seed 42] [--label name] [--inode-order] [--sparse]
+ * [--keep]
+ * <p>
+ * The generated files are dense (random bytes), so comparing a run with
+ * --sparse against one without measures what the zero-block scan of sparse
+ * copy costs on files that have no holes.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class SyncBenchmark {
+
+    private SyncBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark
+     * 
+     * @param args
+     *            command line arguments, see the class comment
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = parseArgs(args);
+        if (!opts.containsKey("dir")) {
+            System.err.println("Usage: SyncBenchmark --dir <scratch> [--out results.json]"
+                    + " [--shapes tiny,deep,wide,huge,mixed] [--files n] [--size bytes] [--change-rate 0.01]"
+                    + " [--seed 42] [--label name] [--inode-order] [--sparse] [--keep]");
+            System.exit(2);
+        }
+        File dir = new File(opts.get("dir"));
+        int files = Integer.parseInt(opts.getOrDefault("files", "0"));
+        long size = Long.parseLong(opts.getOrDefault("size", "0"));
+        double rate = Double.parseDouble(opts.getOrDefault("change-rate", "0.01"));
+        long seed = Long.parseLong(opts.getOrDefault("seed", "42"));
+        boolean keep = opts.containsKey("keep");
+        SyncOptions options = new SyncOptions.SyncOptionsBuilder().inodeOrder(opts.containsKey("inode-order"))
+                .sparseCopy(opts.containsKey("sparse")).build();
+
+        Json json = new Json();
+        json.begin();
+        json.field("label", opts.getOrDefault("label", version()));
+        json.field("jsync", version());
+        json.field("java", System.getProperty("java.version"));
+        json.field("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        json.field("cpus", Runtime.getRuntime().availableProcessors());
+        json.field("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        json.field("timestamp", Instant.now().toString());
+        json.field("changeRate", rate);
+        json.field("seed", seed);
+        json.field("inodeOrder", options.isInodeOrder());
+        json.field("sparseCopy", options.isSparseCopy());
+        json.beginArray("runs");
+        for (String name : opts.getOrDefault("shapes", "tiny,deep,wide,huge,mixed").split(",")) {
+            Shape shape = Shape.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            TreeGenerator generator = new TreeGenerator(shape, files, size, seed);
+            File source = new File(dir, shape.name().toLowerCase(Locale.ROOT) + "-src");
+            File target = new File(dir, shape.name().toLowerCase(Locale.ROOT) + "-dst");
+            delete(source);
+            delete(target);
+            System.err.println("Generating " + shape + " (" + generator.getFiles() + " files)");
+            long generated = generator.generate(source);
+            target.mkdirs();
+
+            json.begin();
+            json.field("shape", shape.name().toLowerCase(Locale.ROOT));
+            json.field("files", generator.getFiles());
+            json.field("maxFileSize", generator.getSize());
+            json.field("sourceBytes", generated);
+            json.beginArray("phases");
+            phase(json, "cold", source, target, options, generated);
+            phase(json, "noop", source, target, options, 0L);
+            long changed = generator.mutate(source, rate, 1);
+            phase(json, "incremental", source, target, options, changed);
+            json.endArray();
+            json.end();
+
+            if (!keep) {
+                delete(source);
+                delete(target);
+            }
+        }
+        json.endArray();
+        json.end();
+
+        String out = json.toString();
+        if (opts.containsKey("out")) {
+            Files.write(Paths.get(opts.get("out")), out.getBytes(StandardCharsets.UTF_8));
+        } else {
+            try (PrintWriter w = new PrintWriter(System.out)) {
+                w.println(out);
+            }
+        }
+    }
+
+    // runs and records one synchronize pass
+    private static void phase(Json json, String name, File source, File target, SyncOptions options, long bytes)
+            throws IOException {
+        System.err.println("  " + name);
+        System.gc();
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                pools.add(pool);
+            }
+        }
+        long gcCount = 0L;
+        long gcTime = 0L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcTime -= gc.getCollectionTime();
+        }
+        Map<String, Long> ioBefore = procIo();
+
+        long start = System.nanoTime();
+        SyncResults r = new Syncer(source, target, options).synchronize(null);
+        long wall = System.nanoTime() - start;
+
+        Map<String, Long> ioAfter = procIo();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcTime += gc.getCollectionTime();
+        }
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+
+        json.begin();
+        json.field("phase", name);
+        json.field("wallNanos", wall);
+        json.field("bytes", bytes);
+        json.field("bytesPerSecond", bytes * 1e9 / wall);
+        json.field("filesPerSecond", r.getNumFilesScanned() * 1e9 / wall);
+        json.field("peakHeapBytes", peak);
+        json.field("gcCount", gcCount);
+        json.field("gcTimeMillis", gcTime);
+        json.beginObject("results");
+        json.field("scanned", r.getNumFilesScanned());
+        json.field("filtered", r.getNumFilesFiltered());
+        json.field("copied", r.getNumFilesCopied());
+        json.field("appended", r.getNumFilesAppended());
+        json.field("linked", r.getNumFilesLinked());
+        json.field("deleted", r.getNumFilesDeleted());
+        json.field("scanTimeNanos", r.getScanTimeNanos());
+        json.field("copyTimeNanos", r.getCopyTimeNanos());
+        json.field("totalTimeNanos", r.getTotalTimeNanos());
+        json.end();
+        if (ioBefore != null && ioAfter != null) {
+            json.beginObject("io");
+            for (Map.Entry<String, Long> e : ioAfter.entrySet()) {
+                Long before = ioBefore.get(e.getKey());
+                json.field(e.getKey(), e.getValue() - (before == null ? 0L : before));
+            }
+            json.end();
+        } else {
+            json.nullField("io");
+        }
+        json.end();
+    }
+
+    // per-process syscall and byte counters, or null when not on Linux
+    private static Map<String, Long> procIo() {
+        Path p = Paths.get("/proc/self/io");
+        if (!Files.isReadable(p)) {
+            return null;
+        }
+        try {
+            Map<String, Long> io = new LinkedHashMap<>();
+            for (String line : Files.readAllLines(p)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    io.put(line.substring(0, colon).trim(), Long.parseLong(line.substring(colon + 1).trim()));
+                }
+            }
+            return io;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String version() {
+        String v = Syncer.class.getPackage() == null ? null : Syncer.class.getPackage().getImplementationVersion();
+        return v == null ? "dev" : v;
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String key = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                opts.put(key, args[++i]);
+            } else {
+                opts.put(key, "true");
+            }
+        }
+        return opts;
+    }
+
+    private static void delete(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Minimal pretty-printing JSON writer
+     */
+    private static final class Json {
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private int depth = 0;
+
+        private boolean first = true;
+
+        void begin() {
+            open(null, '{');
+        }
+
+        void beginObject(String name) {
+            open(name, '{');
+        }
+
+        void beginArray(String name) {
+            open(name, '[');
+        }
+
+        void end() {
+            close('}');
+        }
+
+        void endArray() {
+            close(']');
+        }
+
+        void field(String name, String value) {
+            key(name);
+            quote(value);
+        }
+
+        void field(String name, boolean value) {
+            key(name);
+            sb.append(value);
+        }
+
+        void field(String name, long value) {
+            key(name);
+            sb.append(value);
+        }
+
+        void field(String name, double value) {
+            key(name);
+            sb.append(Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null");
+        }
+
+        void nullField(String name) {
+            key(name);
+            sb.append("null");
+        }
+
+        private void open(String name, char c) {
+            key(name);
+            sb.append(c);
+            depth++;
+            first = true;
+        }
+
+        private void close(char c) {
+            depth--;
+            newline();
+            sb.append(c);
+            first = false;
+        }
+
+        private void key(String name) {
+            if (!first) {
+                sb.append(',');
+            }
+            if (depth > 0) {
+                newline();
+            }
+            first = false;
+            if (name != null) {
+                quote(name);
+                sb.append(": ");
+            }
+        }
+
+        private void newline() {
+            sb.append('\n');
+            for (int i = 0; i < depth; i++) {
+                sb.append("  ");
+            }
+        }
+
+        private void quote(String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
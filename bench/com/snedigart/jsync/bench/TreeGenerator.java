@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates reproducible synthetic source trees for the benchmark. The same
+ * shape, file count, size and seed always give the same tree.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class TreeGenerator {
+
+    /**
+     * Tree shapes
+     */
+    public enum Shape {
+        /** many tiny files, a thousand per directory */
+        TINY(1_000_000, 4 * 1024),
+        /** narrow chains of directories 64 levels deep */
+        DEEP(20_000, 16 * 1024),
+        /** one flat directory */
+        WIDE(100_000, 4 * 1024),
+        /** a few huge files */
+        HUGE(4, 1024L * 1024 * 1024),
+        /** mostly small files, some medium, a couple of large ones */
+        MIXED(50_000, 64 * 1024);
+
+        final int defaultFiles;
+
+        final long defaultSize;
+
+        Shape(int defaultFiles, long defaultSize) {
+            this.defaultFiles = defaultFiles;
+            this.defaultSize = defaultSize;
+        }
+    }
+
+    private static final int FILES_PER_DIRECTORY = 1000;
+
+    private static final int DEEP_DEPTH = 64;
+
+    private final Shape shape;
+
+    private final int files;
+
+    private final long size;
+
+    private final long seed;
+
+    // random bytes; each block is written from a random offset into it
+    private final byte[] noise = new byte[2 * 1024 * 1024];
+
+    /**
+     * Constructor
+     * 
+     * @param shape
+     *            tree shape
+     * @param files
+     *            number of files, or 0 for the shape's default
+     * @param size
+     *            largest file size in bytes, or 0 for the shape's default
+     * @param seed
+     *            random seed
+     */
+    public TreeGenerator(Shape shape, int files, long size, long seed) {
+        this.shape = shape;
+        this.files = files > 0 ? files : shape.defaultFiles;
+        this.size = size > 0L ? size : shape.defaultSize;
+        this.seed = seed;
+        new Random(seed).nextBytes(noise);
+    }
+
+    /**
+     * Creates the tree under the given directory
+     * 
+     * @param dir
+     *            directory, created if missing
+     * @return bytes written
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public long generate(File dir) throws IOException {
+        Random random = new Random(seed);
+        long written = 0L;
+        for (int i = 0; i < files; i++) {
+            Path p = dir.toPath().resolve(pathOf(i));
+            Files.createDirectories(p.getParent());
+            written += write(p, sizeOf(random), random, false);
+        }
+        return written;
+    }
+
+    /**
+     * Changes roughly the given fraction of the files in a generated tree:
+     * half of the picked files are rewritten, a quarter are appended to and a
+     * quarter are deleted, and as many new files are added as were deleted.
+     * Changed files get a modified time well past the original so every
+     * change detector sees them.
+     * 
+     * @param dir
+     *            generated tree
+     * @param rate
+     *            fraction of files to change, 0 to 1
+     * @param round
+     *            mutation round, so repeated mutations differ
+     * @return bytes written
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public long mutate(File dir, double rate, int round) throws IOException {
+        Random random = new Random(seed * 31 + round);
+        List<Path> existing;
+        try (Stream<Path> s = Files.walk(dir.toPath())) {
+            existing = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        FileTime later = FileTime.fromMillis(System.currentTimeMillis() + 60_000L);
+        long written = 0L;
+        int deleted = 0;
+        for (Path p : existing) {
+            if (random.nextDouble() >= rate) {
+                continue;
+            }
+            int action = random.nextInt(4);
+            if (action < 2) {
+                written += write(p, Files.size(p), random, false);
+            } else if (action == 2) {
+                written += write(p, Math.max(1L, Files.size(p) / 8), random, true);
+            } else {
+                Files.delete(p);
+                deleted++;
+                continue;
+            }
+            Files.setLastModifiedTime(p, later);
+        }
+        for (int i = 0; i < deleted; i++) {
+            Path p = dir.toPath().resolve(pathOf(random.nextInt(files))).resolveSibling("n" + round + "-" + i + ".dat");
+            Files.createDirectories(p.getParent());
+            written += write(p, sizeOf(random), random, false);
+        }
+        return written;
+    }
+
+    /**
+     * @return the number of files generated
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the largest file size
+     */
+    public long getSize() {
+        return size;
+    }
+
+    // relative path of the i-th file for this shape
+    private String pathOf(int i) {
+        switch (shape) {
+        case TINY:
+        case MIXED:
+            return String.format("d%04d/d%03d/f%07d.dat", i / (FILES_PER_DIRECTORY * 100),
+                    (i / FILES_PER_DIRECTORY) % 100, i);
+        case DEEP:
+            StringBuilder sb = new StringBuilder();
+            int chain = i / DEEP_DEPTH;
+            sb.append('c').append(chain);
+            for (int d = 0; d < i % DEEP_DEPTH; d++) {
+                sb.append("/l").append(d);
+            }
+            return sb.append("/f").append(i).append(".dat").toString();
+        case WIDE:
+        case HUGE:
+        default:
+            return String.format("f%07d.dat", i);
+        }
+    }
+
+    // size of the next file for this shape
+    private long sizeOf(Random random) {
+        switch (shape) {
+        case HUGE:
+            return size;
+        case MIXED:
+            int r = random.nextInt(1000);
+            if (r == 0) {
+                return size * 256;
+            } else if (r < 50) {
+                return size / 2 + (long) (random.nextDouble() * size / 2);
+            }
+            return (long) (random.nextDouble() * size / 16);
+        default:
+            return (long) (random.nextDouble() * size);
+        }
+    }
+
+    private long write(Path p, long length, Random random, boolean append) throws IOException {
+        try (OutputStream out = append ? Files.newOutputStream(p, StandardOpenOption.APPEND)
+                : Files.newOutputStream(p)) {
+            long left = length;
+            while (left > 0L) {
+                int n = (int) Math.min(noise.length / 2, left);
+                out.write(noise, random.nextInt(noise.length / 2), n);
+                left -= n;
+            }
+        }
+        return length;
+    }
+}
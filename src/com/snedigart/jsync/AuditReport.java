@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable AuditReport object gets returned after a Syncer audit. It
+ * lists the source entries missing from the target, the target entries with
+ * no source, and the entries that differ. Paths are relative, separated by
+ * '/'.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class AuditReport {
+
+    /**
+     * Why an entry differs
+     */
+    public enum Reason {
+        /** a file on one side is a directory on the other */
+        TYPE,
+        /** the sizes differ */
+        SIZE,
+        /** the change detector sees a change, e.g. in modified time */
+        MODIFIED,
+        /** the contents differ */
+        CONTENT
+    }
+
+    /**
+     * An entry that differs between source and target
+     */
+    public static final class Difference {
+
+        private final String path;
+
+        private final Reason reason;
+
+        Difference(String path, Reason reason) {
+            this.path = path;
+            this.reason = reason;
+        }
+
+        /**
+         * @return the relative path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return why the entry differs
+         */
+        public Reason getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return reason + " " + path;
+        }
+    }
+
+    private final List<String> missing;
+
+    private final List<String> extra;
+
+    private final List<Difference> differing;
+
+    private final int numFilesCompared;
+
+    private final long bytesHashed;
+
+    private final long scanTimeNanos;
+
+    private final long totalTimeNanos;
+
+    /**
+     * Constructor
+     * 
+     * @param missing
+     *            source entries missing from the target
+     * @param extra
+     *            target entries with no source
+     * @param differing
+     *            entries that differ
+     * @param numFilesCompared
+     *            files present on both sides and compared
+     * @param bytesHashed
+     *            bytes read for content comparison, both sides together
+     * @param scanTimeNanos
+     *            time spent scanning the source
+     * @param totalTimeNanos
+     *            time spent on the whole audit
+     */
+    AuditReport(List<String> missing, List<String> extra, List<Difference> differing, int numFilesCompared,
+            long bytesHashed, long scanTimeNanos, long totalTimeNanos) {
+        this.missing = new ArrayList<>(missing);
+        this.extra = new ArrayList<>(extra);
+        this.differing = new ArrayList<>(differing);
+        Collections.sort(this.missing);
+        Collections.sort(this.extra);
+        this.differing.sort((a, b) -> a.path.compareTo(b.path));
+        this.numFilesCompared = numFilesCompared;
+        this.bytesHashed = bytesHashed;
+        this.scanTimeNanos = scanTimeNanos;
+        this.totalTimeNanos = totalTimeNanos;
+    }
+
+    /**
+     * @return an unmodifiable, sorted List of the source entries missing from
+     *         the target; a missing directory is listed once, without its
+     *         contents
+     */
+    public List<String> getMissing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * @return an unmodifiable, sorted List of the target entries with no
+     *         source; an extra directory is listed once, without its contents
+     */
+    public List<String> getExtra() {
+        return Collections.unmodifiableList(extra);
+    }
+
+    /**
+     * @return an unmodifiable List of the entries that differ, sorted by path
+     */
+    public List<Difference> getDiffering() {
+        return Collections.unmodifiableList(differing);
+    }
+
+    /**
+     * @return true if the target matches the source
+     */
+    public boolean isClean() {
+        return missing.isEmpty() && extra.isEmpty() && differing.isEmpty();
+    }
+
+    /**
+     * @return the number of files present on both sides and compared
+     */
+    public int getNumFilesCompared() {
+        return numFilesCompared;
+    }
+
+    /**
+     * @return the bytes read for content comparison, both sides together
+     */
+    public long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    /**
+     * @return the time spent scanning the source
+     */
+    public long getScanTimeNanos() {
+        return scanTimeNanos;
+    }
+
+    /**
+     * @return the time spent on the whole audit
+     */
+    public long getTotalTimeNanos() {
+        return totalTimeNanos;
+    }
+
+    /**
+     * Returns a textual representation of the report: the counts, followed by
+     * every entry found
+     * 
+     * @return string
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("Compared   : ").append(numFilesCompared).append(System.lineSeparator());
+        b.append("Missing    : ").append(missing.size()).append(System.lineSeparator());
+        b.append("Extra      : ").append(extra.size()).append(System.lineSeparator());
+        b.append("Differing  : ").append(differing.size()).append(System.lineSeparator());
+        b.append("Hashed     : ").append(bytesHashed).append(" bytes").append(System.lineSeparator());
+        b.append("Scan Time  : ").append(SyncResults.getTimeString(scanTimeNanos)).append(System.lineSeparator());
+        b.append("Total Time : ").append(SyncResults.getTimeString(totalTimeNanos)).append(System.lineSeparator());
+        for (String p : missing) {
+            b.append("MISSING ").append(p).append(System.lineSeparator());
+        }
+        for (String p : extra) {
+            b.append("EXTRA ").append(p).append(System.lineSeparator());
+        }
+        for (Difference d : differing) {
+            b.append(d).append(System.lineSeparator());
+        }
+        return b.toString();
+    }
+}
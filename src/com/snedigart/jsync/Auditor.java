@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.snedigart.jsync.AuditReport.Difference;
+import com.snedigart.jsync.AuditReport.Reason;
+
+/**
+ * Compares a scanned source tree against its target for the Syncer, without
+ * changing either. Content is hashed on one pool per device (file store), so
+ * both sides are read at the same time and each device has its own limit on
+ * concurrent reads.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class Auditor implements Closeable {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final SyncOptions options;
+
+    private final boolean compareContent;
+
+    private final ProgressCallback callback;
+
+    private final Map<FileStore, ExecutorService> devices = new HashMap<>();
+
+    private final ExecutorService sourceDevice;
+
+    private final ExecutorService targetDevice;
+
+    // bounds the file pairs queued for hashing
+    private final Semaphore inFlight;
+
+    private final int maxInFlight;
+
+    private final List<String> missing = new ArrayList<>();
+
+    private final List<String> extra = new ArrayList<>();
+
+    private final List<Difference> differing = new ArrayList<>();
+
+    private final AtomicLong bytesHashed = new AtomicLong();
+
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    private IOException error;
+
+    private int filesCompared = 0;
+
+    private int remaining;
+
+    private int total;
+
+    /**
+     * Constructor
+     *
+     * @param options
+     *            sync options
+     * @param source
+     *            source root
+     * @param target
+     *            target root, which must exist
+     * @param compareContent
+     *            true to hash files whose metadata matches
+     * @param callback
+     *            progress callback
+     * @throws IOException
+     *             thrown if the file stores cannot be determined
+     */
+    Auditor(SyncOptions options, File source, File target, boolean compareContent, ProgressCallback callback)
+            throws IOException {
+        this.options = options;
+        this.compareContent = compareContent;
+        this.callback = callback;
+        int threads = Math.max(1, options.getAuditThreadsPerDevice());
+        this.sourceDevice = device(Files.getFileStore(source.toPath()), threads);
+        this.targetDevice = device(Files.getFileStore(target.toPath()), threads);
+        this.maxInFlight = threads * 8;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Walks the index and the target, and waits for the content comparisons
+     */
+    AuditReport audit(PathIndex index, File source, File target, int totalFiles, long start, long scanNanos)
+            throws IOException {
+        total = remaining = totalFiles;
+        audit(index, index.root(), source, target, "");
+        try {
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hashes");
+        }
+        checkError();
+        callback.call(remaining, total, "Done!");
+        return new AuditReport(missing, extra, differing, filesCompared, bytesHashed.get(), scanNanos,
+                System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService pool : devices.values()) {
+            pool.shutdownNow();
+        }
+    }
+
+    private void audit(PathIndex index, int e, File s, File t, String rel) throws IOException {
+        int flags = index.flags(e);
+        if ((flags & PathIndex.SYMLINK) != 0) {
+            // ignoring symlinks for now
+            callback.call(remaining--, total, "");
+            return;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(t.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException x) {
+            attrs = null;
+        }
+
+        if ((flags & PathIndex.DIRECTORY) != 0) {
+            if (attrs == null) {
+                missing.add(rel);
+                return;
+            } else if (!attrs.isDirectory()) {
+                difference(rel, Reason.TYPE);
+                return;
+            }
+            Set<String> sourceNames = new HashSet<>();
+            for (int c = index.firstChild(e); c != PathIndex.NONE; c = index.nextSibling(c)) {
+                sourceNames.add(index.name(c));
+            }
+            String[] targetNames = t.list();
+            if (targetNames != null) {
+                Arrays.sort(targetNames);
+                for (String name : targetNames) {
+                    if (!sourceNames.contains(name)) {
+                        extra.add(rel.isEmpty() ? name : rel + "/" + name);
+                    }
+                }
+            }
+            for (int c = index.firstChild(e); c != PathIndex.NONE; c = index.nextSibling(c)) {
+                String name = index.name(c);
+                audit(index, c, new File(s, name), new File(t, name), rel.isEmpty() ? name : rel + "/" + name);
+            }
+            return;
+        }
+
+        callback.call(remaining--, total, (flags & PathIndex.INCLUDED) != 0 ? "Checking " + s.getName() : "");
+        if ((flags & PathIndex.INCLUDED) == 0) {
+            return;
+        }
+        if (attrs == null) {
+            missing.add(rel);
+        } else if (attrs.isDirectory()) {
+            difference(rel, Reason.TYPE);
+        } else if (attrs.size() != index.fileSize(e)) {
+            filesCompared++;
+            difference(rel, Reason.SIZE);
+        } else {
+            filesCompared++;
+            boolean modified = options.getChangeDetector().hasChanged(s, t);
+            if (compareContent) {
+                compare(s, t, rel, modified);
+            } else if (modified) {
+                difference(rel, Reason.MODIFIED);
+            }
+        }
+    }
+
+    // hashes both files on their devices' pools and records a mismatch
+    private void compare(File s, File t, String rel, boolean modified) throws IOException {
+        checkError();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the hashes");
+        }
+        CompletableFuture<byte[]> hs = CompletableFuture.supplyAsync(() -> hash(s), sourceDevice);
+        CompletableFuture<byte[]> ht = CompletableFuture.supplyAsync(() -> hash(t), targetDevice);
+        hs.thenCombine(ht, (x, y) -> Arrays.equals(x, y)).whenComplete((same, x) -> {
+            synchronized (this) {
+                if (x != null) {
+                    Throwable cause = x.getCause() instanceof UncheckedIOException ? x.getCause().getCause() : x;
+                    if (error == null) {
+                        error = cause instanceof IOException ? (IOException) cause
+                                : new IOException("Failed to hash " + rel, cause);
+                    }
+                } else if (!same) {
+                    differing.add(new Difference(rel, Reason.CONTENT));
+                } else if (modified) {
+                    differing.add(new Difference(rel, Reason.MODIFIED));
+                }
+            }
+            inFlight.release();
+        });
+    }
+
+    private byte[] hash(File f) {
+        MessageDigest digest = digests.get();
+        ByteBuffer buf = buffers.get();
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            buf.clear();
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                bytesHashed.addAndGet(buf.remaining());
+                digest.update(buf);
+                buf.clear();
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            digest.reset();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // one pool per file store; both sides share it if they are on the same one
+    private ExecutorService device(FileStore store, int threads) {
+        return devices.computeIfAbsent(store, k -> Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "jsync-audit-" + k.name());
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    private synchronized void difference(String rel, Reason reason) {
+        differing.add(new Difference(rel, reason));
+    }
+
+    private synchronized void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The BidirectionalSyncer keeps two directories in step in both directions.
+ * The state both sides agreed on after the last run is kept in a compact
+ * state file. Each run scans both sides once, in parallel, and compares each
+ * side against that state: a path changed on one side only is carried over
+ * to the other, including deletions, and a path changed differently on both
+ * sides is a conflict, resolved by the ConflictPolicy. On the first run,
+ * without a state file, files that match in size and modified time are taken
+ * as in sync, files present on one side are copied over, and differing files
+ * are conflicts. A path that is a file on one side and a directory on the
+ * other is settled first, top-down: the side that changed its type wins, and
+ * the other side's entry is removed, or renamed aside and carried over if it
+ * was changed too. Example use: new BidirectionalSyncer(laptop, nas, new
+ * File(laptop, ".jsync-state"), opts, ConflictPolicy.KEEP_BOTH)
+ * .synchronize(null);
+ * <p>
+ * Filters, preserveModifiedTime and the copy options are taken from the
+ * SyncOptions. If deleteUnmatchedTargets is off, deletions are not carried
+ * over and the file is copied back instead. Symbolic links are ignored.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class BidirectionalSyncer {
+
+    private static final int STATE_MAGIC = 0x4A534253;
+
+    private static final int STATE_VERSION = 1;
+
+    private static final String CONFLICT_SUFFIX_A = ".conflict-a";
+
+    private static final String CONFLICT_SUFFIX_B = ".conflict-b";
+
+    private final File a;
+
+    private final File b;
+
+    private final File stateFile;
+
+    private final SyncOptions options;
+
+    private final ConflictPolicy policy;
+
+    private final List<String> conflicts = new ArrayList<>();
+
+    private FileCopier copier;
+
+    private int filesCopied = 0;
+
+    private int filesDeleted = 0;
+
+    /**
+     * Constructor. If options are null, a set of defaults will be used.
+     * 
+     * @param a
+     *            first directory
+     * @param b
+     *            second directory
+     * @param stateFile
+     *            file holding the state of the last run; keep it outside
+     *            both directories or exclude it with a filter
+     * @param options
+     *            sync options
+     * @param policy
+     *            conflict policy
+     */
+    public BidirectionalSyncer(File a, File b, File stateFile, SyncOptions options, ConflictPolicy policy) {
+        this.a = a;
+        this.b = b;
+        this.stateFile = stateFile;
+        this.options = options == null ? SyncOptions.DEFAULT_OPTIONS : options;
+        this.policy = policy;
+    }
+
+    /**
+     * This method performs the synchronization
+     * 
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return results of the sync, with copies and deletions in both
+     *         directions counted together
+     * @throws IOException
+     *             thrown on IO errors, or if the state file is damaged
+     */
+    public SyncResults synchronize(ProgressCallback cb) throws IOException {
+        ProgressCallback callback = cb == null ? (c, t, m) -> {
+            // no-op
+        } : cb;
+        callback.call(0, 0, "Loading...");
+        conflicts.clear();
+        copier = new FileCopier(options, null);
+        filesCopied = filesDeleted = 0;
+
+        long start = System.nanoTime();
+        Map<String, State> state = loadState();
+        int[] filtered = new int[2];
+        FutureTask<Map<String, Entry>> scanB = new FutureTask<>(() -> scan(b, filtered, 1));
+        Thread scanner = new Thread(scanB, "jsync-scan-b");
+        scanner.start();
+        Map<String, Entry> sideA = scan(a, filtered, 0);
+        Map<String, Entry> sideB;
+        try {
+            sideB = scanB.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning " + b);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Failed to scan " + b, e.getCause());
+        }
+
+        TreeSet<String> paths = new TreeSet<>(state.keySet());
+        paths.addAll(sideA.keySet());
+        paths.addAll(sideB.keySet());
+        Set<String> skipped = new HashSet<>();
+        if (resolveTypeClashes(paths, sideA, sideB, state, skipped)) {
+            paths = new TreeSet<>(state.keySet());
+            paths.addAll(sideA.keySet());
+            paths.addAll(sideB.keySet());
+        }
+        int total = paths.size();
+        int remaining = total;
+        SyncResults.SyncResultsBuilder results = new SyncResults.SyncResultsBuilder();
+        results.filesScanned(total).filesFiltered(Math.max(filtered[0], filtered[1]))
+                .scanTimeNanos(System.nanoTime() - start);
+        callback.call(remaining, total, "Starting synchronize");
+
+        // children before parents, so directories are empty when deleted
+        Map<String, State> next = new HashMap<>();
+        for (String rel : paths.descendingSet()) {
+            callback.call(remaining--, total, rel);
+            Entry ea = sideA.get(rel);
+            Entry eb = sideB.get(rel);
+            State s = state.get(rel);
+            if (isBelow(skipped, rel)) {
+                if (s != null) {
+                    next.put(rel, s);
+                }
+                continue;
+            }
+            boolean changedA = changed(ea, s, true);
+            boolean changedB = changed(eb, s, false);
+            if (changedA && changedB) {
+                if (!same(ea, eb)) {
+                    resolve(rel, ea, eb, s, next);
+                } else if (ea != null) {
+                    next.put(rel, new State(ea.directory, ea.size, ea.modified, eb.modified));
+                }
+            } else if (changedA) {
+                apply(rel, a, ea, b, eb, false, next);
+            } else if (changedB) {
+                apply(rel, b, eb, a, ea, true, next);
+            } else if (s != null) {
+                next.put(rel, s);
+            }
+        }
+        saveState(next);
+
+        results.filesCopied(filesCopied).filesDeleted(filesDeleted).verifyRetries(copier.getVerifyRetries())
+                .verifyFailures(copier.getVerifyFailures()).totalTimeNanos(System.nanoTime() - start);
+        callback.call(remaining, total, "Done!");
+        return results.build();
+    }
+
+    /**
+     * Returns the paths found in conflict by the last run
+     * 
+     * @return relative paths
+     */
+    public List<String> getConflicts() {
+        return Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * Settles every path that is a file on one side and a directory on the
+     * other, parents first, so that the bottom-up pass below never has to
+     * write into an entry of the wrong type. If only one side changed the
+     * path or anything below it, that side wins and the other side's entry is
+     * deleted. Otherwise it is a conflict: PREFER_A and PREFER_B delete the
+     * losing entry, KEEP_BOTH and PREFER_NEWER let the directory keep the name
+     * and rename the file aside, and SKIP leaves the whole subtree alone.
+     * Entries renamed aside have no state, so they are copied to the other
+     * side like new ones; so are entries that are deleted while deletions are
+     * not carried over. Returns true if any entry was renamed aside.
+     */
+    private boolean resolveTypeClashes(TreeSet<String> paths, Map<String, Entry> sideA, Map<String, Entry> sideB,
+            Map<String, State> state, Set<String> skipped) throws IOException {
+        boolean renamed = false;
+        for (String rel : new ArrayList<>(paths)) {
+            Entry ea = sideA.get(rel);
+            Entry eb = sideB.get(rel);
+            if (ea == null || eb == null || ea.directory == eb.directory || isBelow(skipped, rel)) {
+                continue;
+            }
+            boolean changedA = subtreeChanged(rel, paths, sideA, state, true);
+            boolean changedB = subtreeChanged(rel, paths, sideB, state, false);
+            boolean loserA;
+            boolean aside;
+            if (changedA != changedB) {
+                loserA = changedB;
+                aside = !options.isDeleteUnmatchedTargets();
+            } else {
+                conflicts.add(rel);
+                if (policy == ConflictPolicy.SKIP) {
+                    skipped.add(rel);
+                    continue;
+                }
+                if (policy == ConflictPolicy.PREFER_A || policy == ConflictPolicy.PREFER_B) {
+                    loserA = policy == ConflictPolicy.PREFER_B;
+                    aside = false;
+                } else {
+                    loserA = !ea.directory;
+                    aside = true;
+                }
+            }
+            File root = loserA ? a : b;
+            Map<String, Entry> side = loserA ? sideA : sideB;
+            List<String> keys = new ArrayList<>(below(paths, rel));
+            keys.add(0, rel);
+            if (aside) {
+                String moved = asideName(root, rel, loserA ? CONFLICT_SUFFIX_A : CONFLICT_SUFFIX_B, paths);
+                Files.move(root.toPath().resolve(rel), root.toPath().resolve(moved));
+                for (String k : keys) {
+                    Entry e = side.remove(k);
+                    if (e != null) {
+                        side.put(moved + k.substring(rel.length()), e);
+                    }
+                }
+                renamed = true;
+            } else {
+                deleteTree(root.toPath().resolve(rel));
+                side.keySet().removeAll(keys);
+            }
+            // what is left on the winning side is new to the loser
+            state.keySet().removeAll(keys);
+        }
+        return renamed;
+    }
+
+    // true if the side differs from the state at the path or anywhere below it
+    private static boolean subtreeChanged(String rel, TreeSet<String> paths, Map<String, Entry> side,
+            Map<String, State> state, boolean sideA) {
+        if (changed(side.get(rel), state.get(rel), sideA)) {
+            return true;
+        }
+        for (String p : below(paths, rel)) {
+            if (changed(side.get(p), state.get(p), sideA)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the paths strictly below a path; they sort together since they share its prefix
+    private static SortedSet<String> below(TreeSet<String> paths, String rel) {
+        return paths.subSet(rel + "/", rel + "0");
+    }
+
+    // true if the path or one of its parents is in the set
+    private static boolean isBelow(Set<String> roots, String rel) {
+        if (roots.isEmpty()) {
+            return false;
+        }
+        for (String p = rel; p != null; p = p.lastIndexOf('/') < 0 ? null : p.substring(0, p.lastIndexOf('/'))) {
+            if (roots.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a free conflict name for a path on one side
+    private static String asideName(File root, String rel, String suffix, TreeSet<String> paths) {
+        String aside = rel + suffix;
+        for (int n = 1; paths.contains(aside) || Files.exists(root.toPath().resolve(aside), LinkOption.NOFOLLOW_LINKS);
+                n++) {
+            aside = rel + suffix + "-" + n;
+        }
+        return aside;
+    }
+
+    // applies the conflict policy to a path changed on both sides
+    private void resolve(String rel, Entry ea, Entry eb, State s, Map<String, State> next) throws IOException {
+        conflicts.add(rel);
+        ConflictPolicy p = policy;
+        if ((p == ConflictPolicy.PREFER_NEWER || p == ConflictPolicy.KEEP_BOTH) && (ea == null || eb == null)) {
+            // a modification wins over a deletion
+            p = ea == null ? ConflictPolicy.PREFER_B : ConflictPolicy.PREFER_A;
+        }
+        switch (p) {
+        case PREFER_A:
+            apply(rel, a, ea, b, eb, false, next);
+            break;
+        case PREFER_B:
+            apply(rel, b, eb, a, ea, true, next);
+            break;
+        case PREFER_NEWER:
+            if (ea.modified >= eb.modified) {
+                apply(rel, a, ea, b, eb, false, next);
+            } else {
+                apply(rel, b, eb, a, ea, true, next);
+            }
+            break;
+        case KEEP_BOTH:
+            if (ea.directory) {
+                keepAside(rel, b, eb, next);
+                apply(rel, a, ea, b, null, false, next);
+            } else {
+                // B's file moves aside on B and is copied to A, then A's
+                // file takes the name on B; a directory on B wins the name
+                File moved = keepAside(rel, b, eb, next);
+                if (moved == null) {
+                    keepAside(rel, a, ea, next);
+                    apply(rel, b, eb, a, null, true, next);
+                } else {
+                    apply(rel, a, ea, b, null, false, next);
+                }
+            }
+            break;
+        case SKIP:
+        default:
+            if (s != null) {
+                next.put(rel, s);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Renames a conflicting file to its conflict name and copies it to the
+     * other side. Returns the renamed file, or null if the entry is a
+     * directory.
+     */
+    private File keepAside(String rel, File root, Entry e, Map<String, State> next) throws IOException {
+        if (e.directory) {
+            return null;
+        }
+        String aside = rel + (root == a ? CONFLICT_SUFFIX_A : CONFLICT_SUFFIX_B);
+        File from = new File(root, rel);
+        File to = new File(root, aside);
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File other = root == a ? b : a;
+        copy(to, new File(other, aside));
+        record(aside, next);
+        return to;
+    }
+
+    /**
+     * Makes the path on the "to" side match the "from" side: deletes it,
+     * creates the directory, or copies the file. A directory that still has
+     * entries on the "to" side is kept and recreated on the "from" side. Both
+     * sides have the same type here, or the "to" side has nothing, since type
+     * clashes are settled before.
+     */
+    private void apply(String rel, File fromRoot, Entry from, File toRoot, Entry to, boolean toA,
+            Map<String, State> next) throws IOException {
+        File src = new File(fromRoot, rel);
+        File dst = new File(toRoot, rel);
+        if (from == null) {
+            if (!options.isDeleteUnmatchedTargets() && to != null) {
+                // deletions are not carried over: restore from the other side
+                apply(rel, toRoot, to, fromRoot, null, !toA, next);
+                return;
+            }
+            if (to != null && to.directory) {
+                try {
+                    Files.deleteIfExists(dst.toPath());
+                } catch (DirectoryNotEmptyException e) {
+                    // new entries were added below it on the other side
+                    Files.createDirectories(src.toPath());
+                    record(rel, next);
+                    return;
+                }
+            } else if (to != null) {
+                Files.deleteIfExists(dst.toPath());
+                filesDeleted++;
+            }
+            return;
+        }
+        if (from.directory) {
+            Files.createDirectories(dst.toPath());
+        } else {
+            copy(src, dst);
+        }
+        record(rel, next);
+    }
+
+    // copies one file, creating parents and keeping the modified time
+    private void copy(File src, File dst) throws IOException {
+        Files.createDirectories(dst.toPath().getParent());
+        copier.copy(src, dst);
+        filesCopied++;
+        if (options.isPreserveModifiedTime()) {
+            Files.setLastModifiedTime(dst.toPath(), Files.getLastModifiedTime(src.toPath()));
+        }
+    }
+
+    // stores what is now on both sides as the agreed state of a path
+    private void record(String rel, Map<String, State> next) throws IOException {
+        Path pa = a.toPath().resolve(rel);
+        Path pb = b.toPath().resolve(rel);
+        BasicFileAttributes fa;
+        BasicFileAttributes fb;
+        try {
+            fa = Files.readAttributes(pa, BasicFileAttributes.class);
+            fb = Files.readAttributes(pb, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        next.put(rel, new State(fa.isDirectory(), fa.size(), fa.lastModifiedTime().toMillis(),
+                fb.lastModifiedTime().toMillis()));
+    }
+
+    private void deleteTree(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                filesDeleted++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // true if the side differs from what it was after the last run
+    private static boolean changed(Entry e, State s, boolean sideA) {
+        if (e == null || s == null) {
+            return e != null || s != null;
+        }
+        if (e.directory || s.directory) {
+            return e.directory != s.directory;
+        }
+        return e.size != s.size || e.modified != (sideA ? s.modifiedA : s.modifiedB);
+    }
+
+    // true if both sides hold the same thing, e.g. the same change made twice
+    private static boolean same(Entry x, Entry y) {
+        if (x == null || y == null) {
+            return x == y;
+        }
+        if (x.directory || y.directory) {
+            return x.directory == y.directory;
+        }
+        return x.size == y.size && x.modified == y.modified;
+    }
+
+    // scans one side into a map of relative paths; runs on its own thread
+    private Map<String, Entry> scan(File root, int[] filtered, int slot) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        Path rootPath = root.toPath();
+        if (Files.notExists(rootPath)) {
+            throw new NoSuchFileException(root.toString());
+        }
+        Path state = stateFile.toPath().toAbsolutePath();
+        Path stateTmp = state.resolveSibling(state.getFileName() + ".tmp");
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(rootPath)) {
+                    entries.put(relativize(rootPath, dir), new Entry(true, 0L, 0L));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // ignoring symlinks for now
+                Path abs = file.toAbsolutePath();
+                if (!attrs.isRegularFile() || abs.equals(state) || abs.equals(stateTmp)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (options.isIncluded(file.toFile())) {
+                    entries.put(relativize(rootPath, file),
+                            new Entry(false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                } else {
+                    filtered[slot]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private static String relativize(Path root, Path p) {
+        String rel = root.relativize(p).toString();
+        String sep = p.getFileSystem().getSeparator();
+        return sep.equals("/") ? rel : rel.replace(sep, "/");
+    }
+
+    private Map<String, State> loadState() throws IOException {
+        Map<String, State> state = new HashMap<>();
+        if (!stateFile.exists()) {
+            return state;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(stateFile.toPath())))) {
+            if (in.readInt() != STATE_MAGIC || in.readInt() != STATE_VERSION) {
+                throw new IOException("Unsupported state file " + stateFile);
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String rel = in.readUTF();
+                boolean directory = in.readBoolean();
+                state.put(rel, new State(directory, in.readLong(), in.readLong(), in.readLong()));
+            }
+        }
+        return state;
+    }
+
+    // writes the state to a temporary file and moves it into place
+    private void saveState(Map<String, State> state) throws IOException {
+        Path path = stateFile.toPath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeInt(state.size());
+            for (Map.Entry<String, State> e : state.entrySet()) {
+                State s = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeBoolean(s.directory);
+                out.writeLong(s.size);
+                out.writeLong(s.modifiedA);
+                out.writeLong(s.modifiedB);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A scanned file or directory
+     */
+    private static final class Entry {
+
+        final boolean directory;
+
+        final long size;
+
+        final long modified;
+
+        Entry(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * The agreed state of a path after the last run. Modified times are kept
+     * per side, since file systems round them differently.
+     */
+    private static final class State {
+
+        final boolean directory;
+
+        final long size;
+
+        final long modifiedA;
+
+        final long modifiedB;
+
+        State(boolean directory, long size, long modifiedA, long modifiedB) {
+            this.directory = directory;
+            this.size = size;
+            this.modifiedA = modifiedA;
+            this.modifiedB = modifiedB;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one line per change made to the target for the Syncer, so that
+ * downstream jobs can process only the changed paths. Lines are handed to a
+ * background writer through a bounded queue, so memory use does not grow
+ * with the number of changes, and the writer flushes at least once a second.
+ * Each line is "ACTION size mtime path", tab-separated, where mtime is in
+ * milliseconds, size and mtime are -1 where not known, and the path is
+ * relative to the target with '/' separators and tabs, newlines and
+ * backslashes escaped as \t, \n, \r and \\. Runs append to the file, each
+ * starting with a RUN line, and lines are only ever written whole, so a
+ * reader can follow the file while it grows.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class ChangeLog implements Closeable {
+
+    /**
+     * Kinds of change
+     */
+    enum Action {
+        /** a synchronize started; mtime is its start time and the path the absolute target root */
+        RUN,
+        /** a file was copied; size and mtime are those of the new target */
+        COPIED,
+        /** the new tail of a file was appended to the target */
+        APPENDED,
+        /** a file was hard-linked from a reference directory */
+        LINKED,
+        /** a file was deleted; size and mtime are those it had */
+        DELETED,
+        /** a directory was created */
+        MKDIR,
+        /** a directory was deleted */
+        RMDIR
+    }
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000L;
+
+    private static final int QUEUE_SIZE = 8192;
+
+    // pending lines are written out once they reach this many characters
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    // tells the writer to finish
+    private static final String END = new String("");
+
+    private final Path root;
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    private final Thread writer;
+
+    private volatile IOException error;
+
+    /**
+     * Constructor. Appends to the file if it exists, starting with a RUN line.
+     *
+     * @param file
+     *            log file
+     * @param target
+     *            target root the logged paths are relative to
+     * @throws IOException
+     *             thrown if the log file cannot be created
+     */
+    ChangeLog(File file, File target) throws IOException {
+        this.root = target.toPath().toAbsolutePath().normalize();
+        FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        StringBuilder b = new StringBuilder(64);
+        b.append(Action.RUN).append("\t-1\t").append(System.currentTimeMillis()).append('\t');
+        escape(b, root.toString());
+        queue.add(b.append('\n').toString());
+        this.writer = new Thread(() -> drain(out), "jsync-change-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a change, waiting if the writer is behind
+     *
+     * @throws IOException
+     *             thrown if the writer has failed
+     */
+    void record(Action action, Path path, long size, long modified) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        StringBuilder b = new StringBuilder(64);
+        b.append(action).append('\t').append(size).append('\t').append(modified).append('\t');
+        escape(b, relativize(path));
+        b.append('\n');
+        put(b.toString());
+    }
+
+    /**
+     * Writes out everything queued and closes the file
+     *
+     * @throws IOException
+     *             thrown if the writer has failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer.isAlive()) {
+            put(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing the change log");
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Writer thread: collects whole lines and writes them out when idle, once
+     * per interval and whenever a batch is full
+     */
+    private void drain(FileChannel out) {
+        try (FileChannel ch = out) {
+            StringBuilder pending = new StringBuilder(BATCH_SIZE);
+            long lastFlush = System.nanoTime();
+            while (true) {
+                String line = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (line == END) {
+                    break;
+                }
+                if (line != null) {
+                    pending.append(line);
+                }
+                long now = System.nanoTime();
+                if (line == null || pending.length() >= BATCH_SIZE
+                        || now - lastFlush >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS)) {
+                    write(ch, pending);
+                    lastFlush = now;
+                }
+            }
+            write(ch, pending);
+        } catch (IOException e) {
+            error = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Change log writer interrupted");
+            queue.clear();
+        }
+    }
+
+    private static void write(FileChannel ch, StringBuilder pending) throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+        ByteBuffer buf = StandardCharsets.UTF_8.encode(pending.toString());
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        pending.setLength(0);
+    }
+
+    private void put(String line) throws IOException {
+        try {
+            while (!queue.offer(line, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // the writer failed and stopped draining
+                if (error != null) {
+                    throw error;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the change log");
+        }
+    }
+
+    private String relativize(Path path) {
+        Path p = path.toAbsolutePath().normalize();
+        String rel = p.startsWith(root) ? root.relativize(p).toString() : p.toString();
+        String sep = p.getFileSystem().getSeparator();
+        return sep.equals("/") ? rel : rel.replace(sep, "/");
+    }
+
+    private static void escape(StringBuilder b, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\t':
+                b.append("\\t");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            default:
+                b.append(c);
+            }
+        }
+    }
+}
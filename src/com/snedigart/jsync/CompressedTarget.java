@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.snedigart.jsync.codec.CompressionCodec;
+
+/**
+ * Writes compressed target files for the Syncer. Files are compressed on a
+ * worker pool while the walk goes on. Each target directory has a sidecar
+ * listing the original size and modified time of its compressed files, which
+ * is loaded the first time a file of that directory is looked at and written
+ * back once the walk has left the directory and its last file is done.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class CompressedTarget implements Closeable {
+
+    // per-directory sidecar holding "size mtime name" lines
+    static final String SIDECAR_NAME = ".jsync-compressed";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SyncOptions options;
+
+    private final IoBudget budget;
+
+    private final CompressionCodec codec;
+
+    private final ExecutorService pool;
+
+    private final Semaphore inFlight;
+
+    private final Map<File, Directory> directories = new HashMap<>();
+
+    private IOException error;
+
+    private volatile ChangeLog changeLog;
+
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    /**
+     * Constructor
+     *
+     * @param options
+     *            sync options, with a compression codec set
+     * @param budget
+     *            shared I/O budget, or null for unlimited
+     */
+    CompressedTarget(SyncOptions options, IoBudget budget) {
+        this.options = options;
+        this.budget = budget;
+        this.codec = options.getCompressionCodec();
+        int threads = Math.max(1, options.getCompressionThreads());
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "jsync-compress");
+            t.setDaemon(true);
+            return t;
+        });
+        // bounds the files read ahead of the compressors
+        this.inFlight = new Semaphore(threads * 2);
+    }
+
+    /**
+     * Sets the change log that finished compressions are recorded in, or null
+     */
+    void logTo(ChangeLog log) {
+        this.changeLog = log;
+    }
+
+    /**
+     * @return the compressed target file for a plain target file
+     */
+    File targetFor(File t) {
+        return new File(t.getParentFile(), t.getName() + codec.getSuffix());
+    }
+
+    /**
+     * Returns the target names that belong to the given source names: the
+     * compressed name for a file and the same name for a directory, so a
+     * stale uncompressed file is not kept
+     *
+     * @param t
+     *            target directory, for the error message
+     * @param sourceNames
+     *            names of all entries of the source directory
+     * @param sourceDirectories
+     *            names of the directories among them
+     * @return the target names
+     * @throws IOException
+     *             thrown if a file and a directory map to the same target
+     *             name, like a file "x" and a directory "x.gz"
+     */
+    Set<String> targetNames(File t, Set<String> sourceNames, Set<String> sourceDirectories) throws IOException {
+        Set<String> names = new HashSet<>(sourceDirectories);
+        for (String name : sourceNames) {
+            if (sourceDirectories.contains(name)) {
+                continue;
+            }
+            String z = name + codec.getSuffix();
+            if (sourceDirectories.contains(z)) {
+                throw new IOException("Source file " + name + " and source directory " + z
+                        + " both map to " + new File(t, z));
+            }
+            names.add(z);
+        }
+        names.add(SIDECAR_NAME);
+        return names;
+    }
+
+    /**
+     * Returns true if the compressed target exists and was made from a source
+     * of the same size and modified time
+     */
+    boolean isCurrent(File s, File z) throws IOException {
+        long[] r;
+        synchronized (this) {
+            r = directory(z.getParentFile()).records.get(z.getName());
+        }
+        return r != null && r[0] == s.length() && r[1] == s.lastModified();
+    }
+
+    /**
+     * Queues the source to be compressed into the target. Throws the error of
+     * an earlier compression, if there was one.
+     */
+    void submit(File s, File z) throws IOException {
+        checkError();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compressors");
+        }
+        Directory d;
+        synchronized (this) {
+            d = directory(z.getParentFile());
+            d.pending++;
+        }
+        pool.execute(() -> {
+            try {
+                long[] r = compress(s, z);
+                synchronized (this) {
+                    d.records.put(z.getName(), r);
+                }
+                ChangeLog log = changeLog;
+                if (log != null) {
+                    BasicFileAttributes a = Files.readAttributes(z.toPath(), BasicFileAttributes.class);
+                    log.record(ChangeLog.Action.COPIED, z.toPath(), a.size(), a.lastModifiedTime().toMillis());
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            } finally {
+                inFlight.release();
+                done(d, false);
+            }
+        });
+    }
+
+    /**
+     * Called when the walk is done with a target directory; its sidecar is
+     * written once its pending files are compressed
+     */
+    void leave(File dir) throws IOException {
+        Directory d;
+        synchronized (this) {
+            d = directories.get(dir);
+        }
+        if (d != null) {
+            done(d, true);
+        }
+        checkError();
+    }
+
+    /**
+     * Waits for all pending compressions and writes the remaining sidecars
+     */
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                // keep waiting
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compressors");
+        }
+        Directory[] left;
+        synchronized (this) {
+            left = directories.values().toArray(new Directory[0]);
+            directories.clear();
+        }
+        for (Directory d : left) {
+            save(d);
+        }
+        checkError();
+    }
+
+    // compresses to a temporary file and moves it into place
+    private long[] compress(File s, File z) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(s.toPath());
+        Path tmp = z.toPath().resolveSibling("." + z.getName() + ".tmp");
+        long size = 0L;
+        byte[] buf = buffers.get();
+        try (InputStream in = Files.newInputStream(s.toPath());
+                OutputStream out = codec.compress(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                if (budget != null) {
+                    budget.acquire(n);
+                }
+                out.write(buf, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, z.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (options.isPreserveModifiedTime()) {
+            Files.setLastModifiedTime(z.toPath(), modified);
+        }
+        return new long[] { size, modified.toMillis() };
+    }
+
+    // drops one reference to a directory; the last one saves it
+    private void done(Directory d, boolean walkDone) {
+        synchronized (this) {
+            if (walkDone) {
+                d.left = true;
+            } else {
+                d.pending--;
+            }
+            if (!d.left || d.pending > 0) {
+                return;
+            }
+            directories.remove(d.dir);
+        }
+        try {
+            save(d);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+    }
+
+    // returns the state of a directory, loading its sidecar; holds the lock
+    private Directory directory(File dir) throws IOException {
+        Directory d = directories.get(dir);
+        if (d != null) {
+            return d;
+        }
+        d = new Directory(dir);
+        Path sidecar = dir.toPath().resolve(SIDECAR_NAME);
+        String[] listed = dir.list();
+        Set<String> present = listed == null ? new HashSet<>() : new HashSet<>(Arrays.asList(listed));
+        if (present.contains(SIDECAR_NAME)) {
+            try (BufferedReader r = Files.newBufferedReader(sidecar, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] parts = line.split(" ", 3);
+                    if (parts.length == 3 && present.contains(parts[2])) {
+                        d.records.put(parts[2], new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) });
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // a damaged sidecar only costs a recompress
+                d.records.clear();
+            }
+        }
+        directories.put(dir, d);
+        return d;
+    }
+
+    // writes the sidecar of a directory, or removes it if it lists nothing
+    private void save(Directory d) throws IOException {
+        Path sidecar = d.dir.toPath().resolve(SIDECAR_NAME);
+        String[] listed = d.dir.list();
+        if (listed != null) {
+            d.records.keySet().retainAll(Arrays.asList(listed));
+        }
+        if (d.records.isEmpty()) {
+            Files.deleteIfExists(sidecar);
+            return;
+        }
+        Path tmp = sidecar.resolveSibling(SIDECAR_NAME + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, long[]> e : d.records.entrySet()) {
+                w.write(e.getValue()[0] + " " + e.getValue()[1] + " " + e.getKey());
+                w.newLine();
+            }
+        } catch (NoSuchFileException e) {
+            // the directory was deleted meanwhile
+            return;
+        }
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Sidecar state of one target directory
+     */
+    private static final class Directory {
+
+        final File dir;
+
+        final Map<String, long[]> records = new HashMap<>();
+
+        // compressions queued and not finished
+        int pending = 0;
+
+        // the walk has moved past this directory
+        boolean left = false;
+
+        Directory(File dir) {
+            this.dir = dir;
+        }
+    }
+}
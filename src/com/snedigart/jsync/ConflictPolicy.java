@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+/**
+ * How the BidirectionalSyncer resolves a path that changed differently on
+ * both sides since the last sync
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public enum ConflictPolicy {
+
+    /** side A wins, including a deletion on A */
+    PREFER_A,
+
+    /** side B wins, including a deletion on B */
+    PREFER_B,
+
+    /**
+     * the side modified last wins; a modification wins over a deletion, and a
+     * file and a directory under one name are both kept, as with KEEP_BOTH
+     */
+    PREFER_NEWER,
+
+    /**
+     * both versions are kept on both sides: A's file keeps the name and B's is
+     * renamed with a ".conflict-b" suffix; a directory keeps the name against a
+     * file, which is renamed with ".conflict-a" or ".conflict-b" after its
+     * side; a modification wins over a deletion
+     */
+    KEEP_BOTH,
+
+    /** nothing is changed and the path is reported again on the next run */
+    SKIP
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Access to O_DIRECT file I/O, which bypasses the page cache. The DIRECT open
+ * option, FileStore.getBlockSize and ByteBuffer.alignedSlice only exist on
+ * Java 10 and later, so they are looked up reflectively and direct I/O is
+ * simply unavailable on older runtimes. Aligned buffers are pooled, since
+ * direct buffers are expensive to allocate and free.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class DirectIo {
+
+    // size of each pooled buffer; a multiple of any block size in practice
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    // largest alignment the pooled buffers satisfy
+    static final int MAX_ALIGNMENT = 64 * 1024;
+
+    // buffers kept for reuse; more than this are left to the collector
+    private static final int MAX_POOLED = 16;
+
+    private static final OpenOption DIRECT;
+
+    private static final Method GET_BLOCK_SIZE;
+
+    private static final Method ALIGNED_SLICE;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    static {
+        OpenOption direct = null;
+        Method blockSize = null;
+        Method alignedSlice = null;
+        try {
+            Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object o : c.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) o).name())) {
+                    direct = (OpenOption) o;
+                }
+            }
+            blockSize = FileStore.class.getMethod("getBlockSize");
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            direct = null;
+        }
+        DIRECT = direct;
+        GET_BLOCK_SIZE = blockSize;
+        ALIGNED_SLICE = alignedSlice;
+    }
+
+    private DirectIo() {
+        // static helpers only
+    }
+
+    /**
+     * @return true if this runtime supports direct I/O at all
+     */
+    static boolean isAvailable() {
+        return DIRECT != null;
+    }
+
+    /**
+     * @return the DIRECT open option, or null if unavailable
+     */
+    static OpenOption direct() {
+        return DIRECT;
+    }
+
+    /**
+     * Returns the block size that direct I/O on the given file must be aligned
+     * to
+     *
+     * @param p
+     *            path of an existing file
+     * @return block size
+     * @throws IOException
+     *             thrown if the block size cannot be determined
+     */
+    static int blockSize(Path p) throws IOException {
+        FileStore store = Files.getFileStore(p);
+        try {
+            long size = ((Number) GET_BLOCK_SIZE.invoke(store)).longValue();
+            if (size <= 0L || size > MAX_ALIGNMENT || Long.bitCount(size) != 1) {
+                throw new IOException("Unsupported block size " + size);
+            }
+            return (int) size;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            throw new IOException("Block size unavailable", e);
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one. The buffer is
+     * BUFFER_SIZE bytes long and its address is aligned to MAX_ALIGNMENT.
+     *
+     * @return buffer
+     */
+    static ByteBuffer acquire() {
+        ByteBuffer b = POOL.poll();
+        if (b == null) {
+            try {
+                ByteBuffer raw = ByteBuffer.allocateDirect(BUFFER_SIZE + MAX_ALIGNMENT);
+                b = ((ByteBuffer) ALIGNED_SLICE.invoke(raw, MAX_ALIGNMENT));
+                b.limit(BUFFER_SIZE);
+                b = b.slice();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Direct I/O unavailable", e);
+            }
+        }
+        b.clear();
+        return b;
+    }
+
+    /**
+     * Returns a buffer to the pool
+     *
+     * @param b
+     *            buffer from acquire()
+     */
+    static void release(ByteBuffer b) {
+        if (POOL.size() < MAX_POOLED) {
+            POOL.offer(b);
+        }
+    }
+}
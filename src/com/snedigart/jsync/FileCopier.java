@@ -0,0 +1,468 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Performs the byte-level copy of a single file for the Syncer
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class FileCopier {
+
+    // granularity at which holes are punched; matches the common fs block size
+    static final int SPARSE_BLOCK_SIZE = 4096;
+
+    // bytes at the end of the target compared before appending to it
+    static final int APPEND_SAMPLE_SIZE = 64 * 1024;
+
+    // upper bound for the read buffer used by the buffered copy path
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private final SyncOptions options;
+
+    private final IoBudget budget;
+
+    private ByteBuffer buffer;
+
+    private boolean directRejected = false;
+
+    private int filesAppended = 0;
+
+    private int verifyRetries = 0;
+
+    private final List<File> verifyFailures = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param options
+     *            sync options
+     * @param budget
+     *            shared I/O budget, or null for unlimited
+     */
+    FileCopier(SyncOptions options, IoBudget budget) {
+        this.options = options;
+        this.budget = budget;
+    }
+
+    /**
+     * Copies the source file over the target file. If append copy is enabled
+     * and the target is an older prefix of the source, only the new tail is
+     * transferred. If verification is enabled, the written range is read back
+     * and compared against the checksum taken while copying, and the copy is
+     * retried on mismatch. Plain copies of files above the direct I/O
+     * threshold bypass the page cache where the file systems allow it.
+     *
+     * @param s
+     *            source file
+     * @param t
+     *            target file
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    void copy(File s, File t) throws IOException {
+        try (FileChannel iChannel = FileChannel.open(s.toPath(), StandardOpenOption.READ)) {
+            long length = iChannel.size();
+            long start = 0L;
+            if (options.isAppendCopy() && t.isFile()) {
+                start = appendOffset(iChannel, length, s, t);
+            }
+            if (start > 0L) {
+                filesAppended++;
+            } else if (useDirect(length) && copyDirect(s, t, length)) {
+                return;
+            }
+
+            for (int attempt = 0;; attempt++) {
+                CRC32 crc = options.isVerify() ? new CRC32() : null;
+                try (FileChannel oChannel = openTarget(t, start == 0L)) {
+                    if (crc != null || options.isSparseCopy()) {
+                        copyBuffered(iChannel, oChannel, start, length, crc);
+                    } else {
+                        copyTransfer(iChannel, oChannel, start, length);
+                    }
+                }
+                if (options.isSparseCopy()) {
+                    extend(t, length);
+                }
+
+                if (crc == null || (t.length() == length && crc.getValue() == checksum(t, start, length))) {
+                    return;
+                }
+                if (attempt >= options.getVerifyRetries()) {
+                    verifyFailures.add(t);
+                    return;
+                }
+                verifyRetries++;
+            }
+        }
+    }
+
+    // true if a full copy of this length should try direct I/O
+    private boolean useDirect(long length) {
+        long threshold = options.getDirectIoThreshold();
+        return threshold > 0L && length >= threshold && !directRejected && !options.isVerify()
+                && !options.isSparseCopy() && DirectIo.isAvailable();
+    }
+
+    /**
+     * Copies the whole file with O_DIRECT through an aligned, pooled buffer.
+     * The last block is written padded with zeros and the file is then
+     * truncated to its real length. Returns false if either file system
+     * rejects direct I/O, whether on open or with an error (typically EINVAL)
+     * from a read or write partway through; direct I/O is then not tried
+     * again by this copier, the target is truncated and the caller redoes
+     * the copy on the normal path.
+     */
+    private boolean copyDirect(File s, File t, long length) throws IOException {
+        int align;
+        FileChannel in;
+        FileChannel out;
+        try {
+            align = Math.max(DirectIo.blockSize(s.toPath()),
+                    DirectIo.blockSize(t.getAbsoluteFile().getParentFile().toPath()));
+            in = FileChannel.open(s.toPath(), StandardOpenOption.READ, DirectIo.direct());
+        } catch (IOException | UnsupportedOperationException e) {
+            directRejected = true;
+            return false;
+        }
+        try (FileChannel iChannel = in) {
+            try {
+                out = FileChannel.open(t.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE, DirectIo.direct());
+            } catch (IOException | UnsupportedOperationException e) {
+                directRejected = true;
+                return false;
+            }
+            ByteBuffer buf = DirectIo.acquire();
+            // read at most a chunk at a time, rounded down to whole blocks
+            int size = (int) Math.max(align, Math.min(buf.capacity(), chunkSize()) / align * align);
+            try (FileChannel oChannel = out) {
+                long position = 0L;
+                while (position < length) {
+                    buf.clear().limit(size);
+                    int read;
+                    try {
+                        read = iChannel.read(buf, position);
+                    } catch (IOException e) {
+                        return rejectDirect(oChannel);
+                    }
+                    if (read <= 0) {
+                        throw new IOException("Error during file transfer");
+                    }
+                    if (budget != null) {
+                        budget.acquire(read);
+                    }
+                    int padded = (read + align - 1) / align * align;
+                    if (padded != read && position + read < length) {
+                        throw new IOException("Short direct read from " + s);
+                    }
+                    for (int i = read; i < padded; i++) {
+                        buf.put(i, (byte) 0);
+                    }
+                    buf.limit(padded).position(0);
+                    long at = position;
+                    try {
+                        while (buf.hasRemaining()) {
+                            at += oChannel.write(buf, at);
+                        }
+                    } catch (IOException e) {
+                        return rejectDirect(oChannel);
+                    }
+                    position += read;
+                }
+            } finally {
+                DirectIo.release(buf);
+            }
+        }
+
+        // drop the padding of the last block
+        if (length % align != 0L) {
+            try (FileChannel oChannel = FileChannel.open(t.toPath(), StandardOpenOption.WRITE)) {
+                oChannel.truncate(length);
+            }
+        }
+        return true;
+    }
+
+    // drops a partly written direct copy so the normal path starts clean
+    private boolean rejectDirect(FileChannel oChannel) throws IOException {
+        directRejected = true;
+        oChannel.truncate(0L);
+        return false;
+    }
+
+    /**
+     * @return number of files that only had their tail appended
+     */
+    int getFilesAppended() {
+        return filesAppended;
+    }
+
+    /**
+     * @return number of copies repeated after a verification mismatch
+     */
+    int getVerifyRetries() {
+        return verifyRetries;
+    }
+
+    /**
+     * @return targets that still did not match their source after all retries
+     */
+    List<File> getVerifyFailures() {
+        return verifyFailures;
+    }
+
+    // opens the target for writing, truncating it unless appending
+    private FileChannel openTarget(File t, boolean truncate) throws IOException {
+        Set<OpenOption> opts = new HashSet<>();
+        opts.add(StandardOpenOption.WRITE);
+        if (truncate) {
+            opts.add(StandardOpenOption.CREATE);
+            opts.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if (options.isSparseCopy()) {
+            opts.add(StandardOpenOption.SPARSE);
+        }
+        return FileChannel.open(t.toPath(), opts);
+    }
+
+    /**
+     * Returns the offset at which the source may be appended to the target, or
+     * 0 if the whole file must be copied. The target qualifies when it is
+     * shorter and older than the source and its last block matches the same
+     * range of the source (or its whole content, if prefix verification is
+     * on).
+     */
+    private long appendOffset(FileChannel iChannel, long length, File s, File t) throws IOException {
+        long tLength = t.length();
+        if (tLength == 0L || tLength >= length || t.lastModified() >= s.lastModified()) {
+            return 0L;
+        }
+        try (FileChannel tChannel = FileChannel.open(t.toPath(), StandardOpenOption.READ)) {
+            long from = options.isVerifyAppendPrefix() ? 0L : Math.max(0L, tLength - APPEND_SAMPLE_SIZE);
+            return rangesEqual(iChannel, tChannel, from, tLength) ? tLength : 0L;
+        }
+    }
+
+    // compares the same byte range of two channels
+    private boolean rangesEqual(FileChannel a, FileChannel b, long from, long to) throws IOException {
+        int size = (int) Math.min(APPEND_SAMPLE_SIZE, to - from);
+        ByteBuffer aBuf = ByteBuffer.allocate(size);
+        ByteBuffer bBuf = ByteBuffer.allocate(size);
+        for (long pos = from; pos < to; pos += size) {
+            aBuf.clear().limit((int) Math.min(size, to - pos));
+            bBuf.clear().limit(aBuf.limit());
+            if (readFully(a, aBuf, pos) != aBuf.limit() || readFully(b, bBuf, pos) != bBuf.limit()) {
+                return false;
+            }
+            aBuf.flip();
+            bBuf.flip();
+            if (!aBuf.equals(bBuf)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // copies the range using channel-to-channel transfer
+    private void copyTransfer(FileChannel iChannel, FileChannel oChannel, long start, long length)
+            throws IOException {
+        long doneBytes = start;
+        long todoBytes = length - start;
+        while (todoBytes != 0L) {
+            long iBytes = Math.min(todoBytes, chunkSize());
+            if (budget != null) {
+                budget.acquire(iBytes);
+            }
+            long transferred = oChannel.transferFrom(iChannel.position(doneBytes), doneBytes, iBytes);
+            if (iBytes != transferred) {
+                throw new IOException("Error during file transfer");
+            }
+            doneBytes += transferred;
+            todoBytes -= transferred;
+        }
+    }
+
+    /**
+     * Copies the range through a buffer, feeding every byte to the checksum
+     * if one is given. When sparse copy is on, all-zero blocks are not
+     * written, leaving holes in the target, and each run of data blocks goes
+     * out in a single write so that dense files cost no more than a plain
+     * buffered copy. A trailing hole leaves the target short; the caller
+     * extends it with {@link #extend}.
+     */
+    private void copyBuffered(FileChannel iChannel, FileChannel oChannel, long start, long length, CRC32 crc)
+            throws IOException {
+        boolean sparse = options.isSparseCopy();
+        ByteBuffer buf = buffer();
+        long position = start;
+        while (position < length) {
+            buf.clear();
+            int read = readFully(iChannel, buf, position);
+            if (read <= 0) {
+                throw new IOException("Error during file transfer");
+            }
+            if (budget != null) {
+                budget.acquire(read);
+            }
+            if (crc != null) {
+                buf.flip();
+                crc.update(buf);
+                buf.limit(read);
+            }
+            if (!sparse) {
+                write(oChannel, buf, 0, read, position);
+            } else {
+                // skip zero blocks and write each run of data blocks at once
+                int off = 0;
+                while (off < read) {
+                    while (off < read && isZero(buf, off, Math.min(SPARSE_BLOCK_SIZE, read - off))) {
+                        off += SPARSE_BLOCK_SIZE;
+                    }
+                    int end = off;
+                    while (end < read && !isZero(buf, end, Math.min(SPARSE_BLOCK_SIZE, read - end))) {
+                        end += SPARSE_BLOCK_SIZE;
+                    }
+                    end = Math.min(end, read);
+                    if (end > off) {
+                        write(oChannel, buf, off, end, position + off);
+                    }
+                    off = end;
+                }
+            }
+            position += read;
+        }
+    }
+
+    // writes the given range of the buffer at the given file position
+    private static void write(FileChannel oChannel, ByteBuffer buf, int from, int to, long position)
+            throws IOException {
+        int limit = buf.limit();
+        buf.limit(to).position(from);
+        long at = position;
+        while (buf.hasRemaining()) {
+            at += oChannel.write(buf, at);
+        }
+        buf.limit(limit);
+    }
+
+    // sizes a target that ends in a hole without allocating a block for it
+    private static void extend(File t, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(t, "rw")) {
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+        }
+    }
+
+    // reads back a range of the written file and returns its checksum
+    private long checksum(File f, long start, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = buffer();
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            for (long position = start; position < length;) {
+                buf.clear();
+                int read = readFully(channel, buf, position);
+                if (read <= 0) {
+                    break;
+                }
+                if (budget != null) {
+                    budget.acquire(read);
+                }
+                buf.flip();
+                crc.update(buf);
+                position += read;
+            }
+        }
+        return crc.getValue();
+    }
+
+    // reads until the buffer is full or EOF is reached
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Returns true if every byte in the given range is zero. Works a long at a
+     * time and ORs four words per step so that dense data bails out within the
+     * first four words, while zero runs are scanned with few branches.
+     *
+     * @param buf
+     *            native-ordered buffer
+     * @param off
+     *            offset into the buffer
+     * @param len
+     *            length of the range
+     * @return boolean
+     */
+    static boolean isZero(ByteBuffer buf, int off, int len) {
+        int i = off;
+        int end = off + len;
+        for (; i + 4 * Long.BYTES <= end; i += 4 * Long.BYTES) {
+            if ((buf.getLong(i) | buf.getLong(i + 8) | buf.getLong(i + 16) | buf.getLong(i + 24)) != 0L) {
+                return false;
+            }
+        }
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if (buf.getLong(i) != 0L) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (buf.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the chunk size, reduced to keep budget waits short when there is one
+    private long chunkSize() {
+        return budget == null ? options.getChunkSize() : Math.min(options.getChunkSize(), budget.chunkLimit());
+    }
+
+    // lazily allocates the copy buffer as a whole number of sparse blocks
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            long size = Math.min(chunkSize(), MAX_BUFFER_SIZE);
+            size = Math.max(SPARSE_BLOCK_SIZE, size - (size % SPARSE_BLOCK_SIZE));
+            buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket that limits the combined copy throughput of several Syncers.
+ * Callers book their bytes in arrival order on a fair lock and, if that
+ * overdraws the bucket, sleep outside it until their share of the debt is
+ * paid off, so concurrent syncs share the budget evenly.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class IoBudget {
+
+    // smallest chunk worth scheduling on its own
+    private static final long MIN_CHUNK = 64 * 1024;
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final LongSupplier clock;
+
+    private long available;
+
+    private long lastRefill;
+
+    /**
+     * Constructor
+     *
+     * @param bytesPerSecond
+     *            the sustained rate; up to one second of it can be used as a
+     *            burst
+     */
+    IoBudget(long bytesPerSecond) {
+        this(bytesPerSecond, System::nanoTime);
+    }
+
+    /**
+     * Constructor with its own time source, for tests
+     *
+     * @param bytesPerSecond
+     *            the sustained rate
+     * @param clock
+     *            nanosecond clock
+     */
+    IoBudget(long bytesPerSecond, LongSupplier clock) {
+        if (bytesPerSecond <= 0L) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.clock = clock;
+        this.available = bytesPerSecond;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Returns the largest chunk a copier should move before asking for more
+     * budget, so waits stay short and even
+     *
+     * @return bytes
+     */
+    long chunkLimit() {
+        return Math.max(MIN_CHUNK, bytesPerSecond / 16);
+    }
+
+    /**
+     * Takes the given number of bytes from the budget, waiting until the
+     * bucket has refilled enough if it is overdrawn
+     *
+     * @param bytes
+     *            bytes about to be moved
+     * @throws InterruptedIOException
+     *             thrown if interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        long wait;
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            // the bucket holds at most one second; working in double keeps
+            // long idle times at high rates from overflowing. Elapsed time is
+            // not capped, so it also pays off a debt of more than one second
+            double refill = (now - lastRefill) * (double) bytesPerSecond / SECOND;
+            if (refill >= 1.0) {
+                available = (long) Math.min((double) bytesPerSecond, available + refill);
+                lastRefill = now;
+            }
+            available -= bytes;
+            wait = available < 0L ? (long) (-available * (double) SECOND / bytesPerSecond) : 0L;
+        } finally {
+            lock.unlock();
+        }
+
+        // the debt is already booked, so later callers queue behind it while
+        // this one sleeps without holding the lock
+        if (wait > 0L) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for I/O budget");
+            }
+        }
+    }
+}
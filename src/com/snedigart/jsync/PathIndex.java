@@ -0,0 +1,409 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact, off-heap index of a directory tree. Entries are numbered from 0
+ * (the root) and stored as a trie: each entry keeps only its own name plus
+ * links to its parent, first child and next sibling, so shared path prefixes
+ * are stored once. Names, links, sizes, modified times and flags live in
+ * primitive columns made of direct or memory-mapped buffer segments, so the
+ * Java heap only holds a few segment references no matter how large the tree
+ * is. Children are walked with plain int indexes, without allocating.
+ * Example: for (int c = idx.firstChild(d); c != NONE; c =
+ * idx.nextSibling(c)) { ... }
+ * 
+ * Not thread-safe.
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class PathIndex implements Closeable {
+
+    /**
+     * Index value meaning "no entry"
+     */
+    static final int NONE = -1;
+
+    /**
+     * The entry is a directory
+     */
+    static final int DIRECTORY = 1;
+
+    /**
+     * The entry passed the sync filters
+     */
+    static final int INCLUDED = 2;
+
+    /**
+     * The entry is a symbolic link
+     */
+    static final int SYMLINK = 4;
+
+    // entries per column segment
+    private static final int SEGMENT_SHIFT = 16;
+
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    // bytes per name segment; names never straddle two segments
+    private static final int NAME_SEGMENT_SIZE = 1 << 20;
+
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    private final FileChannel mapFile;
+
+    private final Path mapPath;
+
+    private long mapPosition = 0L;
+
+    private final Column parents = new Column(Integer.BYTES);
+
+    private final Column firstChildren = new Column(Integer.BYTES);
+
+    private final Column lastChildren = new Column(Integer.BYTES);
+
+    private final Column nextSiblings = new Column(Integer.BYTES);
+
+    private final Column nameOffsets = new Column(Long.BYTES);
+
+    private final Column nameLengths = new Column(Short.BYTES);
+
+    private final Column sizes = new Column(Long.BYTES);
+
+    private final Column modifiedTimes = new Column(Long.BYTES);
+
+    private final Column flags = new Column(Byte.BYTES);
+
+    private final Column[] columns = { parents, firstChildren, lastChildren, nextSiblings, nameOffsets, nameLengths,
+            sizes, modifiedTimes, flags };
+
+    private final List<ByteBuffer> names = new ArrayList<>();
+
+    private long namesUsed = 0L;
+
+    private final byte[] scratch = new byte[MAX_NAME_LENGTH];
+
+    private int count = 0;
+
+    /**
+     * Constructor. Creates an index backed by direct buffers, holding only the
+     * root entry.
+     */
+    PathIndex() {
+        this.mapFile = null;
+        this.mapPath = null;
+        addRoot();
+    }
+
+    /**
+     * Constructor. Creates an index whose columns are memory-mapped from a
+     * temporary file in the given directory, so the OS can page them out. The
+     * file is deleted on close.
+     *
+     * @param dir
+     *            directory for the backing file
+     * @throws IOException
+     *             thrown if the backing file cannot be created
+     */
+    PathIndex(File dir) throws IOException {
+        this.mapPath = Files.createTempFile(dir.toPath(), "jsync-index", ".tmp");
+        this.mapFile = FileChannel.open(mapPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        addRoot();
+    }
+
+    private void addRoot() {
+        try {
+            add(NONE, "", 0L, 0L, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds an entry as the last child of the given parent
+     *
+     * @param parent
+     *            parent entry
+     * @param name
+     *            file name
+     * @param size
+     *            size in bytes
+     * @param modified
+     *            modified time in ms
+     * @param f
+     *            flags
+     * @return the new entry
+     * @throws IOException
+     *             thrown if the index cannot grow
+     */
+    int add(int parent, String name, long size, long modified, int f) throws IOException {
+        if (count == Integer.MAX_VALUE) {
+            throw new IOException("Path index is full");
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IOException("File name too long: " + name);
+        }
+        int e = count;
+        for (Column c : columns) {
+            c.ensure(e);
+        }
+        long nameOffset = putName(bytes);
+        count++;
+        parents.putInt(e, parent);
+        firstChildren.putInt(e, NONE);
+        lastChildren.putInt(e, NONE);
+        nextSiblings.putInt(e, NONE);
+        nameOffsets.putLong(e, nameOffset);
+        nameLengths.putShort(e, (short) bytes.length);
+        sizes.putLong(e, size);
+        modifiedTimes.putLong(e, modified);
+        flags.putByte(e, (byte) f);
+
+        if (parent != NONE) {
+            int last = lastChildren.getInt(parent);
+            if (last == NONE) {
+                firstChildren.putInt(parent, e);
+            } else {
+                nextSiblings.putInt(last, e);
+            }
+            lastChildren.putInt(parent, e);
+        }
+        return e;
+    }
+
+    /**
+     * Replaces the attributes of an entry
+     *
+     * @param e
+     *            entry
+     * @param size
+     *            size in bytes
+     * @param modified
+     *            modified time in ms
+     * @param f
+     *            flags
+     */
+    void set(int e, long size, long modified, int f) {
+        sizes.putLong(e, size);
+        modifiedTimes.putLong(e, modified);
+        flags.putByte(e, (byte) f);
+    }
+
+    /**
+     * @return the root entry
+     */
+    int root() {
+        return 0;
+    }
+
+    /**
+     * @return the number of entries, including the root
+     */
+    int size() {
+        return count;
+    }
+
+    int parent(int e) {
+        return parents.getInt(e);
+    }
+
+    int firstChild(int e) {
+        return firstChildren.getInt(e);
+    }
+
+    int nextSibling(int e) {
+        return nextSiblings.getInt(e);
+    }
+
+    long fileSize(int e) {
+        return sizes.getLong(e);
+    }
+
+    long modified(int e) {
+        return modifiedTimes.getLong(e);
+    }
+
+    int flags(int e) {
+        return flags.getByte(e);
+    }
+
+    boolean isDirectory(int e) {
+        return (flags(e) & DIRECTORY) != 0;
+    }
+
+    /**
+     * @param e
+     *            entry
+     * @return the name of the entry
+     */
+    String name(int e) {
+        long off = nameOffsets.getLong(e);
+        int len = nameLengths.getShort(e) & 0xFFFF;
+        ByteBuffer seg = names.get((int) (off / NAME_SEGMENT_SIZE));
+        int pos = (int) (off % NAME_SEGMENT_SIZE);
+        for (int i = 0; i < len; i++) {
+            scratch[i] = seg.get(pos + i);
+        }
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends the '/'-separated path of the entry, relative to the root, to
+     * the builder
+     *
+     * @param e
+     *            entry
+     * @param b
+     *            builder
+     * @return the builder
+     */
+    StringBuilder appendPath(int e, StringBuilder b) {
+        int p = parent(e);
+        if (p != NONE && p != root()) {
+            appendPath(p, b).append('/');
+        }
+        if (e != root()) {
+            b.append(name(e));
+        }
+        return b;
+    }
+
+    /**
+     * @return the native memory used by the index, in bytes
+     */
+    long memoryUsed() {
+        long used = (long) names.size() * NAME_SEGMENT_SIZE;
+        for (Column c : columns) {
+            used += c.capacity();
+        }
+        return used;
+    }
+
+    /**
+     * Releases the segments. Direct buffers are freed when collected; a
+     * mapped backing file is deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        names.clear();
+        for (Column c : columns) {
+            c.segments.clear();
+        }
+        if (mapFile != null) {
+            mapFile.close();
+            Files.deleteIfExists(mapPath);
+        }
+    }
+
+    private long putName(byte[] bytes) throws IOException {
+        long pos = namesUsed % NAME_SEGMENT_SIZE;
+        if (pos + bytes.length > NAME_SEGMENT_SIZE) {
+            namesUsed += NAME_SEGMENT_SIZE - pos;
+            pos = 0L;
+        }
+        int seg = (int) (namesUsed / NAME_SEGMENT_SIZE);
+        while (names.size() <= seg) {
+            names.add(allocate(NAME_SEGMENT_SIZE));
+        }
+        ByteBuffer buf = names.get(seg);
+        for (int i = 0; i < bytes.length; i++) {
+            buf.put((int) pos + i, bytes[i]);
+        }
+        long off = namesUsed;
+        namesUsed += bytes.length;
+        return off;
+    }
+
+    private ByteBuffer allocate(int bytes) throws IOException {
+        if (mapFile == null) {
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        ByteBuffer b = mapFile.map(FileChannel.MapMode.READ_WRITE, mapPosition, bytes);
+        mapPosition += bytes;
+        return b.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * One fixed-width field of every entry, in segments of 64K entries
+     */
+    private final class Column {
+
+        private final int width;
+
+        private final List<ByteBuffer> segments = new ArrayList<>();
+
+        Column(int width) {
+            this.width = width;
+        }
+
+        // makes room for entry e; entries are only ever added at the end
+        void ensure(int e) throws IOException {
+            int s = e >>> SEGMENT_SHIFT;
+            while (segments.size() <= s) {
+                segments.add(allocate(width << SEGMENT_SHIFT));
+            }
+        }
+
+        long capacity() {
+            return (long) segments.size() * (width << SEGMENT_SHIFT);
+        }
+
+        int getInt(int e) {
+            return segments.get(e >>> SEGMENT_SHIFT).getInt((e & SEGMENT_MASK) * width);
+        }
+
+        long getLong(int e) {
+            return segments.get(e >>> SEGMENT_SHIFT).getLong((e & SEGMENT_MASK) * width);
+        }
+
+        short getShort(int e) {
+            return segments.get(e >>> SEGMENT_SHIFT).getShort((e & SEGMENT_MASK) * width);
+        }
+
+        byte getByte(int e) {
+            return segments.get(e >>> SEGMENT_SHIFT).get((e & SEGMENT_MASK) * width);
+        }
+
+        void putInt(int e, int v) {
+            segments.get(e >>> SEGMENT_SHIFT).putInt((e & SEGMENT_MASK) * width, v);
+        }
+
+        void putLong(int e, long v) {
+            segments.get(e >>> SEGMENT_SHIFT).putLong((e & SEGMENT_MASK) * width, v);
+        }
+
+        void putShort(int e, short v) {
+            segments.get(e >>> SEGMENT_SHIFT).putShort((e & SEGMENT_MASK) * width, v);
+        }
+
+        void putByte(int e, byte v) {
+            segments.get(e >>> SEGMENT_SHIFT).put((e & SEGMENT_MASK) * width, v);
+        }
+    }
+}
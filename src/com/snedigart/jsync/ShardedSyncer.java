@@ -0,0 +1,706 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ShardedSyncer lets several processes, on one host or on several hosts
+ * that mount the same paths, split one source/target sync between them. The
+ * tree is cut into units at a fixed depth (by default the top-level entries),
+ * and units are hashed into shards. Workers claim shards by creating lease
+ * files in a shared control directory, renew their leases while they work,
+ * and leave a done marker holding the shard's results when they finish. A
+ * lease that is not renewed in time expires, and its shard is taken over by
+ * another worker under a new generation. A worker checks its lease's owner,
+ * generation and expiry while it syncs, and stops as soon as the lease is no
+ * longer its own, so a taken-over shard is not synced by two workers for
+ * longer than one file copy. Every worker keeps going until all shards are
+ * done and then returns the merged results. A change log or digest file in
+ * the options gets one file per unit, named after it (e.g. "digest.unit-photos"
+ * and, for the loose files of a shard, "changes.log.shard-7"). Example use: new
+ * ShardedSyncerBuilder(src, tgt, control).shards(64).build().synchronize(null);
+ * <p>
+ * Use an empty control directory for each run, since done markers from an
+ * earlier run would be taken as finished work. Lease expiry compares wall
+ * clocks, so the hosts' clocks should agree to well within the lease time.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class ShardedSyncer {
+
+    private final File source;
+
+    private final File target;
+
+    private final SyncOptions options;
+
+    private final Path control;
+
+    private final int shards;
+
+    private final int depth;
+
+    private final long leaseMillis;
+
+    private final String workerId;
+
+    private int shardsSynced = 0;
+
+    private ShardedSyncer(ShardedSyncerBuilder b) {
+        this.source = b.source;
+        this.target = b.target;
+        this.options = b.options == null ? SyncOptions.DEFAULT_OPTIONS : b.options;
+        this.control = b.control.toPath();
+        this.shards = b.shards;
+        this.depth = b.depth;
+        this.leaseMillis = b.leaseMillis;
+        this.workerId = b.workerId;
+    }
+
+    /**
+     * Works on unclaimed and expired shards until every shard is done
+     * 
+     * @param cb
+     *            callback that gets called with the number of shards left
+     * @return the merged results of all shards, including those synced by
+     *         other workers
+     * @throws IOException
+     *             thrown on IO errors, or if the control directory was set up
+     *             with a different shard count or depth
+     */
+    public SyncResults synchronize(ProgressCallback cb) throws IOException {
+        ProgressCallback callback = cb == null ? (c, t, m) -> {
+            // no-op
+        } : cb;
+        if (shards < 1 || depth < 1 || leaseMillis < 1L) {
+            throw new IOException("Shards, depth and lease time must be positive");
+        }
+        if (!source.isDirectory()) {
+            throw new NoSuchFileException(source.toString());
+        }
+        Files.createDirectories(control.resolve("leases"));
+        Files.createDirectories(control.resolve("done"));
+        checkLayout();
+        Files.createDirectories(target.toPath());
+
+        List<List<String>> units = listUnits();
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "jsync-lease-" + workerId);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            // start at a different shard in each worker to spread the claims
+            int offset = Math.floorMod(workerId.hashCode(), shards);
+            while (true) {
+                int left = 0;
+                boolean waiting = false;
+                for (int i = 0; i < shards; i++) {
+                    int shard = (offset + i) % shards;
+                    if (Files.exists(donePath(shard))) {
+                        continue;
+                    }
+                    left++;
+                    Lease lease = claim(shard);
+                    if (lease != null) {
+                        callback.call(left, shards, "Syncing shard " + shard);
+                        if (runShard(lease, units.get(shard), renewer)) {
+                            shardsSynced++;
+                            left--;
+                        } else if (Files.exists(donePath(shard))) {
+                            left--;
+                        } else {
+                            callback.call(left, shards, "Lost the lease on shard " + shard);
+                            waiting = true;
+                        }
+                    } else {
+                        waiting = true;
+                    }
+                }
+                if (left == 0) {
+                    break;
+                }
+                if (waiting) {
+                    callback.call(left, shards, "Waiting for other workers");
+                    Thread.sleep(Math.min(1000L, Math.max(10L, leaseMillis / 4)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shards");
+        } finally {
+            renewer.shutdownNow();
+        }
+
+        SyncResults.SyncResultsBuilder merged = new SyncResults.SyncResultsBuilder();
+        for (int shard = 0; shard < shards; shard++) {
+            merged.add(readResults(donePath(shard)));
+        }
+        callback.call(0, shards, "Done!");
+        return merged.build();
+    }
+
+    /**
+     * @return the number of shards this worker synced in its last run
+     */
+    public int getShardsSynced() {
+        return shardsSynced;
+    }
+
+    /**
+     * @return this worker's id, as written into its leases
+     */
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Syncs one shard while keeping its lease alive, then marks it done.
+     * Returns false if the lease was lost to another worker first, in which
+     * case that worker finishes the shard, or if another worker's done marker
+     * was already in place.
+     */
+    private boolean runShard(Lease lease, List<String> units, ScheduledExecutorService renewer) throws IOException {
+        int shard = lease.shard;
+        long period = Math.max(1L, leaseMillis / 3);
+        ScheduledFuture<?> renewal = renewer.scheduleAtFixedRate(() -> {
+            try {
+                Properties p = readLease(shard);
+                if (!lease.isHeld(p)) {
+                    lease.lost = true;
+                } else {
+                    writeLease(shard, lease.generation);
+                }
+            } catch (IOException e) {
+                // a renewal that keeps failing lets the lease expire, which
+                // the next check notices
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        try {
+            SyncResults r;
+            try {
+                r = syncUnits(lease, units);
+            } catch (LeaseLostException e) {
+                return false;
+            }
+            Path tmp = control.resolve("done").resolve(shard + "." + workerId + ".tmp");
+            writeResults(tmp, r);
+            try {
+                Files.move(tmp, donePath(shard), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // another worker took the shard over and finished first
+                Files.delete(tmp);
+                return false;
+            } catch (IOException e) {
+                // ATOMIC_MOVE may replace on some platforms; either marker is
+                // a complete result
+                Files.deleteIfExists(tmp);
+                if (!Files.exists(donePath(shard))) {
+                    throw e;
+                }
+                return false;
+            }
+            return true;
+        } finally {
+            renewal.cancel(false);
+            try {
+                if (lease.isHeld(readLease(shard))) {
+                    Files.deleteIfExists(leasePath(shard));
+                }
+            } catch (NoSuchFileException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Syncs directories as whole subtrees and the rest as a change list,
+     * checking the lease before each unit and on every progress report
+     */
+    private SyncResults syncUnits(Lease lease, List<String> units) throws IOException {
+        ProgressCallback fence = (c, t, m) -> lease.check();
+        SyncResults.SyncResultsBuilder results = new SyncResults.SyncResultsBuilder();
+        List<String> loose = new ArrayList<>();
+        Path sourcePath = source.toPath();
+        for (String rel : units) {
+            Path s = sourcePath.resolve(rel);
+            if (Files.isDirectory(s, LinkOption.NOFOLLOW_LINKS)) {
+                lease.check();
+                File t = target.toPath().resolve(rel).toFile();
+                results.add(new Syncer(s.toFile(), t, unitOptions(".unit-" + unitName(rel))).synchronize(fence));
+            } else {
+                loose.add(rel);
+            }
+        }
+        if (!loose.isEmpty()) {
+            lease.check();
+            results.add(new Syncer(source, target, unitOptions(".shard-" + lease.shard)).synchronize(loose, fence));
+        }
+        return results.build();
+    }
+
+    // the options with the change log and digest file, if any, of one unit
+    private SyncOptions unitOptions(String suffix) {
+        File log = options.getChangeLog();
+        File digest = options.getDigestFile();
+        if (log == null && digest == null) {
+            return options;
+        }
+        return options.withOutputFiles(log == null ? null : new File(log.getPath() + suffix),
+                digest == null ? null : new File(digest.getPath() + suffix));
+    }
+
+    // a file name part for a unit; long paths are shortened to a hash
+    private static String unitName(String rel) throws IOException {
+        String name = URLEncoder.encode(rel, "UTF-8");
+        return name.length() <= 128 ? name : Integer.toHexString(rel.hashCode()) + "-" + rel.length();
+    }
+
+    // creates the lease, or takes it over if it has expired; null if taken
+    private Lease claim(int shard) throws IOException {
+        Path lease = leasePath(shard);
+        if (createLease(shard, 1L)) {
+            return grant(shard, 1L);
+        }
+        Properties held;
+        try {
+            held = readLease(shard);
+        } catch (NoSuchFileException e) {
+            return createLease(shard, 1L) ? grant(shard, 1L) : null;
+        }
+        String expires = held.getProperty("expires");
+        if (expires == null) {
+            // still being written by its creator; count it from its mtime
+            try {
+                expires = Long.toString(Files.getLastModifiedTime(lease).toMillis() + leaseMillis);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        if (Long.parseLong(expires) > System.currentTimeMillis()) {
+            return null;
+        }
+        // move the stale lease aside; only one worker's move can succeed
+        Path stale = lease.resolveSibling(shard + ".stale." + workerId);
+        try {
+            Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        Properties moved = load(stale);
+        if (!held.equals(moved)) {
+            // the lease was renewed or re-claimed after it was read: put it
+            // back
+            try {
+                Files.move(stale, lease, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(stale);
+            }
+            return null;
+        }
+        Files.delete(stale);
+        long generation = Long.parseLong(held.getProperty("generation", "0")) + 1L;
+        return createLease(shard, generation) ? grant(shard, generation) : null;
+    }
+
+    /**
+     * Returns the lease just created, or releases it and returns null if the
+     * shard was finished meanwhile: its last worker may have marked it done
+     * and dropped its lease between the check and the create
+     */
+    private Lease grant(int shard, long generation) throws IOException {
+        if (Files.exists(donePath(shard))) {
+            Files.deleteIfExists(leasePath(shard));
+            return null;
+        }
+        return new Lease(shard, generation);
+    }
+
+    private boolean createLease(int shard, long generation) throws IOException {
+        try (OutputStream out = Files.newOutputStream(leasePath(shard), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            leaseProperties(generation).store(out, null);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    // rewrites the lease with a new expiry through an atomic replace
+    private void writeLease(int shard, long generation) throws IOException {
+        Path tmp = leasePath(shard).resolveSibling(shard + ".renew." + workerId);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            leaseProperties(generation).store(out, null);
+        }
+        Files.move(tmp, leasePath(shard), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties leaseProperties(long generation) {
+        Properties p = new Properties();
+        p.setProperty("owner", workerId);
+        p.setProperty("generation", Long.toString(generation));
+        p.setProperty("expires", Long.toString(System.currentTimeMillis() + leaseMillis));
+        return p;
+    }
+
+    private Properties readLease(int shard) throws IOException {
+        return load(leasePath(shard));
+    }
+
+    // the shard count and depth must be the same for every worker of a run
+    private void checkLayout() throws IOException {
+        Path layout = control.resolve("layout");
+        Properties p = new Properties();
+        p.setProperty("shards", Integer.toString(shards));
+        p.setProperty("depth", Integer.toString(depth));
+        try (OutputStream out = Files.newOutputStream(layout, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            p.store(out, null);
+        } catch (FileAlreadyExistsException e) {
+            Properties existing = load(layout);
+            for (int i = 0; i < 100 && existing.isEmpty(); i++) {
+                // another worker is still writing it
+                sleep(10L);
+                existing = load(layout);
+            }
+            if (!p.equals(existing)) {
+                throw new IOException("Control directory " + control + " was set up for "
+                        + existing.getProperty("shards") + " shards at depth " + existing.getProperty("depth"));
+            }
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the control directory");
+        }
+    }
+
+    /**
+     * Lists the units of every shard: the entries of the source and target at
+     * the unit depth, plus shallower files and entries that only exist in one
+     * of the trees.
+     */
+    private List<List<String>> listUnits() throws IOException {
+        List<List<String>> units = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            units.add(new ArrayList<>());
+        }
+        listUnits("", 1, units);
+        return units;
+    }
+
+    private void listUnits(String prefix, int level, List<List<String>> units) throws IOException {
+        TreeSet<String> names = new TreeSet<>();
+        Collections.addAll(names, list(new File(source, prefix)));
+        Collections.addAll(names, list(new File(target, prefix)));
+        for (String name : names) {
+            String rel = prefix + name;
+            File s = new File(source, rel);
+            if (level < depth && s.isDirectory() && !Files.isSymbolicLink(s.toPath())) {
+                Files.createDirectories(target.toPath().resolve(rel));
+                listUnits(rel + "/", level + 1, units);
+            } else {
+                units.get(shardOf(rel)).add(rel);
+            }
+        }
+    }
+
+    private String[] list(File dir) {
+        String[] names = dir.list();
+        return names == null ? new String[0] : names;
+    }
+
+    // String.hashCode is fixed by the spec, so every JVM agrees on this
+    private int shardOf(String rel) {
+        return Math.floorMod(rel.hashCode() * 0x9E3779B1, shards);
+    }
+
+    private Path leasePath(int shard) {
+        return control.resolve("leases").resolve(Integer.toString(shard));
+    }
+
+    private Path donePath(int shard) {
+        return control.resolve("done").resolve(Integer.toString(shard));
+    }
+
+    private static Properties load(Path p) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(p)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    private static void writeResults(Path p, SyncResults r) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("scanned", Integer.toString(r.getNumFilesScanned()));
+        props.setProperty("filtered", Integer.toString(r.getNumFilesFiltered()));
+        props.setProperty("copied", Integer.toString(r.getNumFilesCopied()));
+        props.setProperty("appended", Integer.toString(r.getNumFilesAppended()));
+        props.setProperty("linked", Integer.toString(r.getNumFilesLinked()));
+        props.setProperty("deleted", Integer.toString(r.getNumFilesDeleted()));
+        props.setProperty("retried", Integer.toString(r.getNumVerifyRetries()));
+        props.setProperty("scanTimeNanos", Long.toString(r.getScanTimeNanos()));
+        props.setProperty("totalTimeNanos", Long.toString(r.getTotalTimeNanos()));
+        List<File> failures = r.getVerifyFailures();
+        props.setProperty("mismatched", Integer.toString(failures.size()));
+        for (int i = 0; i < failures.size(); i++) {
+            props.setProperty("mismatched." + i, failures.get(i).getPath());
+        }
+        try (OutputStream out = Files.newOutputStream(p)) {
+            props.store(out, null);
+        }
+    }
+
+    private static SyncResults readResults(Path p) throws IOException {
+        Properties props = load(p);
+        List<File> failures = new ArrayList<>();
+        int n = Integer.parseInt(props.getProperty("mismatched", "0"));
+        for (int i = 0; i < n; i++) {
+            failures.add(new File(props.getProperty("mismatched." + i)));
+        }
+        return new SyncResults.SyncResultsBuilder().filesScanned(intOf(props, "scanned"))
+                .filesFiltered(intOf(props, "filtered")).filesCopied(intOf(props, "copied"))
+                .filesAppended(intOf(props, "appended")).filesLinked(intOf(props, "linked"))
+                .filesDeleted(intOf(props, "deleted")).verifyRetries(intOf(props, "retried"))
+                .verifyFailures(failures).scanTimeNanos(Long.parseLong(props.getProperty("scanTimeNanos", "0")))
+                .totalTimeNanos(Long.parseLong(props.getProperty("totalTimeNanos", "0"))).build();
+    }
+
+    private static int intOf(Properties props, String key) {
+        return Integer.parseInt(props.getProperty(key, "0"));
+    }
+
+    /**
+     * Runs one worker. Usage: ShardedSyncer source target control shards
+     * [depth] [leaseSeconds]. Start the same command on every node.
+     * 
+     * @param args
+     *            command line arguments
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: ShardedSyncer <source> <target> <control> <shards> [depth] [leaseSeconds]");
+            System.exit(2);
+        }
+        ShardedSyncerBuilder b = new ShardedSyncerBuilder(new File(args[0]), new File(args[1]), new File(args[2]))
+                .shards(Integer.parseInt(args[3]));
+        if (args.length > 4) {
+            b.depth(Integer.parseInt(args[4]));
+        }
+        if (args.length > 5) {
+            b.leaseMillis(Long.parseLong(args[5]) * 1000L);
+        }
+        ShardedSyncer syncer = b.build();
+        SyncResults r = syncer.synchronize(null);
+        System.out.println(syncer.getWorkerId() + " synced " + syncer.getShardsSynced() + " shards");
+        System.out.println(r);
+    }
+
+    /**
+     * A lease this worker holds on a shard. It counts as lost once the lease
+     * file names another owner or generation, or once the expiry of its last
+     * renewal has passed, whichever is noticed first.
+     */
+    private final class Lease {
+
+        private final int shard;
+
+        private final long generation;
+
+        private volatile long expires = System.currentTimeMillis() + leaseMillis;
+
+        private volatile boolean lost;
+
+        private Lease(int shard, long generation) {
+            this.shard = shard;
+            this.generation = generation;
+        }
+
+        // whether the lease file is still this lease and has not expired
+        private boolean isHeld(Properties p) {
+            if (!workerId.equals(p.getProperty("owner"))
+                    || !Long.toString(generation).equals(p.getProperty("generation"))) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (Long.parseLong(p.getProperty("expires", "0")) <= now || expires <= now) {
+                return false;
+            }
+            // the renewal that follows pushes the expiry out by a full lease
+            expires = now + leaseMillis;
+            return true;
+        }
+
+        private void check() {
+            if (lost || expires <= System.currentTimeMillis()) {
+                lost = true;
+                throw new LeaseLostException();
+            }
+        }
+    }
+
+    // aborts the Syncer of a shard whose lease was lost
+    private static final class LeaseLostException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private LeaseLostException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Builder for ShardedSyncer
+     * 
+     * @author Tyler Snedigar
+     * @version 1.0
+     */
+    public static class ShardedSyncerBuilder {
+
+        private final File source;
+
+        private final File target;
+
+        private final File control;
+
+        private SyncOptions options = null;
+
+        private int shards = 64;
+
+        private int depth = 1;
+
+        private long leaseMillis = 30_000L;
+
+        private String workerId = ManagementFactory.getRuntimeMXBean().getName();
+
+        /**
+         * Constructor
+         * 
+         * @param source
+         *            directory
+         * @param target
+         *            directory
+         * @param control
+         *            control directory shared by all workers of the run
+         */
+        public ShardedSyncerBuilder(File source, File target, File control) {
+            this.source = source;
+            this.target = target;
+            this.control = control;
+        }
+
+        /**
+         * Sets the sync options, used by every shard
+         * 
+         * @param o
+         *            options, or null for defaults
+         * @return ShardedSyncerBuilder
+         */
+        public ShardedSyncerBuilder options(SyncOptions o) {
+            this.options = o;
+            return this;
+        }
+
+        /**
+         * Sets the number of shards. Must be the same for every worker.
+         * 
+         * @param n
+         *            shards
+         * @return ShardedSyncerBuilder
+         */
+        public ShardedSyncerBuilder shards(int n) {
+            this.shards = n;
+            return this;
+        }
+
+        /**
+         * Sets the depth at which the tree is cut into units; 1 hashes the
+         * top-level entries, 2 their children, and so on. Must be the same
+         * for every worker.
+         * 
+         * @param n
+         *            depth
+         * @return ShardedSyncerBuilder
+         */
+        public ShardedSyncerBuilder depth(int n) {
+            this.depth = n;
+            return this;
+        }
+
+        /**
+         * Sets how long a lease lasts without renewal. Leases are renewed
+         * every third of this.
+         * 
+         * @param ms
+         *            lease time in milliseconds
+         * @return ShardedSyncerBuilder
+         */
+        public ShardedSyncerBuilder leaseMillis(long ms) {
+            this.leaseMillis = ms;
+            return this;
+        }
+
+        /**
+         * Sets the worker id written into leases. Defaults to pid@host.
+         * 
+         * @param id
+         *            worker id, unique per run
+         * @return ShardedSyncerBuilder
+         */
+        public ShardedSyncerBuilder workerId(String id) {
+            this.workerId = id;
+            return this;
+        }
+
+        /**
+         * Builds the ShardedSyncer object and returns it
+         * 
+         * @return ShardedSyncer
+         */
+        public ShardedSyncer build() {
+            return new ShardedSyncer(this);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SyncJob runs many source/target pairs concurrently on one shared worker
+ * pool. Pairs are started in the order they were added, and all copies draw
+ * from one optional I/O budget whose waiters are served in turn, so no pair
+ * can starve the others. Example use: SyncJob job = new
+ * SyncJobBuilder().threads(8).add(a, b, opts).add(c, d, opts).build();
+ * SyncJobResults r = job.run(null); A change log or digest file that several
+ * pairs' options name is written once per pair instead, with ".pair-" and the
+ * index of the pair appended to its name.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class SyncJob {
+
+    private final List<Pair> pairs;
+
+    private final int threads;
+
+    private final long ioBytesPerSecond;
+
+    // private for builder pattern
+    private SyncJob(SyncJobBuilder builder) {
+        this.pairs = ownOutputFiles(builder.pairs);
+        this.threads = builder.threads;
+        this.ioBytesPerSecond = builder.ioBytesPerSecond;
+    }
+
+    /**
+     * Runs every pair and waits for all of them to finish. A pair that fails
+     * does not stop the others; its exception is reported in the results.
+     * The callback is called from the worker threads, with each message
+     * prefixed by the index of its pair in brackets.
+     * 
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return per-pair and aggregate results
+     * @throws IOException
+     *             thrown if interrupted while waiting for the pairs
+     */
+    public SyncJobResults run(ProgressCallback cb) throws IOException {
+        IoBudget budget = ioBytesPerSecond > 0L ? new IoBudget(ioBytesPerSecond) : null;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, pairs.size())),
+                new WorkerFactory());
+        long start = System.nanoTime();
+        List<Future<SyncResults>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < pairs.size(); i++) {
+                Pair pair = pairs.get(i);
+                String prefix = "[" + i + "] ";
+                ProgressCallback pcb = cb == null ? null : (r, t, m) -> cb.call(r, t, prefix + m);
+                futures.add(pool.submit(() -> {
+                    Syncer syncer = new Syncer(pair.source, pair.target, pair.options);
+                    syncer.setIoBudget(budget);
+                    return syncer.synchronize(pcb);
+                }));
+            }
+
+            List<SyncResults> results = new ArrayList<>();
+            List<Exception> errors = new ArrayList<>();
+            for (Future<SyncResults> f : futures) {
+                try {
+                    results.add(f.get());
+                    errors.add(null);
+                } catch (ExecutionException e) {
+                    results.add(null);
+                    errors.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            }
+            return new SyncJobResults(results, errors, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sync job");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // gives every pair that shares a change log or digest file its own one
+    private static List<Pair> ownOutputFiles(List<Pair> pairs) {
+        Map<File, Integer> uses = new HashMap<>();
+        for (Pair p : pairs) {
+            if (p.options != null) {
+                count(uses, p.options.getChangeLog());
+                count(uses, p.options.getDigestFile());
+            }
+        }
+        List<Pair> own = new ArrayList<>(pairs.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            Pair p = pairs.get(i);
+            if (p.options == null) {
+                own.add(p);
+                continue;
+            }
+            File log = perPair(uses, p.options.getChangeLog(), i);
+            File digest = perPair(uses, p.options.getDigestFile(), i);
+            own.add(log == p.options.getChangeLog() && digest == p.options.getDigestFile() ? p
+                    : new Pair(p.source, p.target, p.options.withOutputFiles(log, digest)));
+        }
+        return own;
+    }
+
+    private static void count(Map<File, Integer> uses, File f) {
+        if (f != null) {
+            uses.merge(f.getAbsoluteFile(), 1, Integer::sum);
+        }
+    }
+
+    private static File perPair(Map<File, Integer> uses, File f, int i) {
+        return f == null || uses.get(f.getAbsoluteFile()) < 2 ? f : new File(f.getPath() + ".pair-" + i);
+    }
+
+    /**
+     * @return the number of pairs in the job
+     */
+    public int size() {
+        return pairs.size();
+    }
+
+    /**
+     * A source, target and options to sync
+     */
+    private static final class Pair {
+
+        final File source;
+
+        final File target;
+
+        final SyncOptions options;
+
+        Pair(File source, File target, SyncOptions options) {
+            this.source = source;
+            this.target = target;
+            this.options = options;
+        }
+    }
+
+    /**
+     * Names the pool threads and keeps them from holding up JVM exit
+     */
+    private static final class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "jsync-job-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * This builder class builds a complete SyncJob object and returns it
+     * 
+     * @author Tyler Snedigar
+     * @version 1.0
+     */
+    public static class SyncJobBuilder {
+
+        private final List<Pair> pairs = new ArrayList<>();
+
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        private long ioBytesPerSecond = 0L;
+
+        /**
+         * Adds a pair to sync. If options are null, a set of defaults will be
+         * used.
+         * 
+         * @param source
+         *            directory
+         * @param target
+         *            directory
+         * @param options
+         *            sync options
+         * @return SyncJobBuilder
+         */
+        public SyncJobBuilder add(File source, File target, SyncOptions options) {
+            this.pairs.add(new Pair(source, target, options));
+            return this;
+        }
+
+        /**
+         * Sets the number of pairs that are synced at the same time. The
+         * default is the number of available processors.
+         * 
+         * @param n
+         *            threads
+         * @return SyncJobBuilder
+         */
+        public SyncJobBuilder threads(int n) {
+            this.threads = n;
+            return this;
+        }
+
+        /**
+         * Sets the combined copy throughput of all pairs, in bytes per second.
+         * Zero or less means unlimited, which is the default.
+         * 
+         * @param l
+         *            bytes per second
+         * @return SyncJobBuilder
+         */
+        public SyncJobBuilder ioBytesPerSecond(long l) {
+            this.ioBytesPerSecond = l;
+            return this;
+        }
+
+        /**
+         * Builds the SyncJob object and returns it
+         * 
+         * @return SyncJob
+         */
+        public SyncJob build() {
+            return new SyncJob(this);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable SyncJobResults object gets returned after a SyncJob has run,
+ * with the results of each pair and their aggregate
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class SyncJobResults {
+
+    private final List<SyncResults> results;
+
+    private final List<Exception> errors;
+
+    private final SyncResults aggregate;
+
+    private final long elapsedNanos;
+
+    /**
+     * Constructor
+     * 
+     * @param results
+     *            results per pair, null where the pair failed
+     * @param errors
+     *            exception per pair, null where the pair succeeded
+     * @param elapsedNanos
+     *            wall-clock time of the whole job
+     */
+    SyncJobResults(List<SyncResults> results, List<Exception> errors, long elapsedNanos) {
+        this.results = new ArrayList<>(results);
+        this.errors = new ArrayList<>(errors);
+        this.elapsedNanos = elapsedNanos;
+        SyncResults.SyncResultsBuilder b = new SyncResults.SyncResultsBuilder();
+        for (SyncResults r : results) {
+            if (r != null) {
+                b.add(r);
+            }
+        }
+        this.aggregate = b.build();
+    }
+
+    /**
+     * @return an unmodifiable List of the results of each pair, in the order
+     *         the pairs were added; entries are null for failed pairs
+     */
+    public List<SyncResults> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return an unmodifiable List of the exception of each pair, in the order
+     *         the pairs were added; entries are null for successful pairs
+     */
+    public List<Exception> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return the number of pairs that failed
+     */
+    public int getNumFailed() {
+        int n = 0;
+        for (Exception e : errors) {
+            if (e != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the sum of the results of all successful pairs; its times add
+     *         up the time spent by every pair
+     */
+    public SyncResults getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @return the wall-clock time of the whole job
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns a textual representation of the aggregate results
+     * 
+     * @return string
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("Pairs      : ").append(results.size()).append(System.lineSeparator());
+        b.append("Failed     : ").append(getNumFailed()).append(System.lineSeparator());
+        b.append(aggregate.toString());
+        return b.toString();
+    }
+}
@@ -13,10 +13,14 @@
  */
 package com.snedigart.jsync;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.snedigart.jsync.change.ChangeDetector;
+import com.snedigart.jsync.change.ModifiedTimeChangeDetector;
+import com.snedigart.jsync.codec.CompressionCodec;
 import com.snedigart.jsync.filter.SyncFilter;
 
 /**
@@ -38,10 +42,40 @@ public final class SyncOptions {
 
     private final boolean smartCopy;
 
+    private final ChangeDetector changeDetector;
+
     private final boolean preserveModifiedTime;
 
     private final long chunkSize;
 
+    private final boolean sparseCopy;
+
+    private final long directIoThreshold;
+
+    private final boolean appendCopy;
+
+    private final boolean verifyAppendPrefix;
+
+    private final boolean verify;
+
+    private final int verifyRetries;
+
+    private final List<File> linkReferences;
+
+    private final File pathIndexDirectory;
+
+    private final boolean inodeOrder;
+
+    private final int auditThreadsPerDevice;
+
+    private final File changeLog;
+
+    private final File digestFile;
+
+    private final CompressionCodec compressionCodec;
+
+    private final int compressionThreads;
+
     private final List<SyncFilter> inclusionFilters;
 
     private final List<SyncFilter> exclusionFilters;
@@ -56,13 +90,65 @@ public final class SyncOptions {
         this.deleteEmptyTargetDirectories = builder.deleteEmptyTargetDirectories;
         this.preserveModifiedTime = builder.preserveModifiedTime;
         this.smartCopy = builder.smartCopy;
+        this.changeDetector = builder.changeDetector;
         this.chunkSize = builder.chunkSize;
+        this.sparseCopy = builder.sparseCopy;
+        this.directIoThreshold = builder.directIoThreshold;
+        this.appendCopy = builder.appendCopy;
+        this.verifyAppendPrefix = builder.verifyAppendPrefix;
+        this.verify = builder.verify;
+        this.verifyRetries = builder.verifyRetries;
+        this.linkReferences = new ArrayList<>(builder.linkReferences);
+        this.pathIndexDirectory = builder.pathIndexDirectory;
+        this.inodeOrder = builder.inodeOrder;
+        this.auditThreadsPerDevice = builder.auditThreadsPerDevice;
+        this.changeLog = builder.changeLog;
+        this.digestFile = builder.digestFile;
+        this.compressionCodec = builder.compressionCodec;
+        this.compressionThreads = builder.compressionThreads;
         this.inclusionFilters = new ArrayList<>(builder.inclusionFilters);
         this.exclusionFilters = new ArrayList<>(builder.exclusionFilters);
         this.matchAllInclusionFilters = builder.matchAllInclusionFilters;
         this.matchAllExclusionFilters = builder.matchAllExclusionFilters;
     }
 
+    // copy with other output files
+    private SyncOptions(SyncOptions o, File changeLog, File digestFile) {
+        this.deleteUnmatchedTargets = o.deleteUnmatchedTargets;
+        this.deleteEmptyTargetDirectories = o.deleteEmptyTargetDirectories;
+        this.smartCopy = o.smartCopy;
+        this.changeDetector = o.changeDetector;
+        this.preserveModifiedTime = o.preserveModifiedTime;
+        this.chunkSize = o.chunkSize;
+        this.sparseCopy = o.sparseCopy;
+        this.directIoThreshold = o.directIoThreshold;
+        this.appendCopy = o.appendCopy;
+        this.verifyAppendPrefix = o.verifyAppendPrefix;
+        this.verify = o.verify;
+        this.verifyRetries = o.verifyRetries;
+        this.linkReferences = o.linkReferences;
+        this.pathIndexDirectory = o.pathIndexDirectory;
+        this.inodeOrder = o.inodeOrder;
+        this.auditThreadsPerDevice = o.auditThreadsPerDevice;
+        this.changeLog = changeLog;
+        this.digestFile = digestFile;
+        this.compressionCodec = o.compressionCodec;
+        this.compressionThreads = o.compressionThreads;
+        this.inclusionFilters = o.inclusionFilters;
+        this.exclusionFilters = o.exclusionFilters;
+        this.matchAllInclusionFilters = o.matchAllInclusionFilters;
+        this.matchAllExclusionFilters = o.matchAllExclusionFilters;
+    }
+
+    /**
+     * Returns a copy of these options that writes its change log and digest
+     * to the given files instead, for runners that start several Syncers from
+     * one set of options
+     */
+    SyncOptions withOutputFiles(File changeLog, File digestFile) {
+        return new SyncOptions(this, changeLog, digestFile);
+    }
+
     /**
      * Returns the option of whether or not to delete target files/directories
      * that do not correspond to a source file/directory. Defaults to true.
@@ -93,6 +179,17 @@ public final class SyncOptions {
         return this.smartCopy;
     }
 
+    /**
+     * Returns the ChangeDetector that smart copy uses to decide whether a
+     * source differs from its target. Defaults to a
+     * ModifiedTimeChangeDetector with a 2 second tolerance.
+     * 
+     * @return ChangeDetector
+     */
+    public ChangeDetector getChangeDetector() {
+        return this.changeDetector;
+    }
+
     /**
      * Returns the option of whether or not to preserve the modified time.
      * Defaults to true.
@@ -113,6 +210,149 @@ public final class SyncOptions {
         return this.chunkSize;
     }
 
+    /**
+     * Returns the option of whether or not all-zero blocks are skipped so the
+     * target is written as a sparse file. Defaults to false.
+     * 
+     * @return boolean
+     */
+    public boolean isSparseCopy() {
+        return this.sparseCopy;
+    }
+
+    /**
+     * Returns the file size from which copies use direct I/O, bypassing the
+     * page cache. Zero or less disables direct I/O. Defaults to 0.
+     * 
+     * @return long
+     */
+    public long getDirectIoThreshold() {
+        return this.directIoThreshold;
+    }
+
+    /**
+     * Returns the option of whether or not a target that is an older prefix of
+     * the source is completed by copying only the new tail. Defaults to false.
+     * 
+     * @return boolean
+     */
+    public boolean isAppendCopy() {
+        return this.appendCopy;
+    }
+
+    /**
+     * Returns the option of whether or not the whole target prefix is compared
+     * before appending, instead of only its last block. Defaults to false.
+     * 
+     * @return boolean
+     */
+    public boolean isVerifyAppendPrefix() {
+        return this.verifyAppendPrefix;
+    }
+
+    /**
+     * Returns the option of whether or not each copied file is checksummed
+     * while copying and checked against the written target. Defaults to
+     * false.
+     * 
+     * @return boolean
+     */
+    public boolean isVerify() {
+        return this.verify;
+    }
+
+    /**
+     * Returns the number of times a copy is repeated after a verification
+     * mismatch. Defaults to 2.
+     * 
+     * @return int
+     */
+    public int getVerifyRetries() {
+        return this.verifyRetries;
+    }
+
+    /**
+     * Returns an unmodifiable List of the reference directories used for
+     * snapshots. Unchanged source files that are found in one of them are
+     * hard-linked into the target instead of copied. Defaults to an empty
+     * list.
+     * 
+     * @return List of directories
+     */
+    public List<File> getLinkReferences() {
+        return Collections.unmodifiableList(this.linkReferences);
+    }
+
+    /**
+     * Returns the directory in which the scan index is memory-mapped, or null
+     * if it is kept in direct memory. Defaults to null.
+     * 
+     * @return directory
+     */
+    public File getPathIndexDirectory() {
+        return this.pathIndexDirectory;
+    }
+
+    /**
+     * Returns the option of whether or not the entries of each directory are
+     * scanned and synced in inode order. Defaults to false.
+     * 
+     * @return boolean
+     */
+    public boolean isInodeOrder() {
+        return this.inodeOrder;
+    }
+
+    /**
+     * Returns the number of files an audit hashes at the same time on each
+     * device. Defaults to 4.
+     * 
+     * @return threads
+     */
+    public int getAuditThreadsPerDevice() {
+        return this.auditThreadsPerDevice;
+    }
+
+    /**
+     * Returns the file each synchronize writes its change log to, or null if
+     * no log is written. Defaults to null.
+     * 
+     * @return file
+     */
+    public File getChangeLog() {
+        return this.changeLog;
+    }
+
+    /**
+     * Returns the file the Merkle digest of the source tree is kept in between
+     * synchronizes, or null if none is kept. Defaults to null.
+     * 
+     * @return file
+     */
+    public File getDigestFile() {
+        return this.digestFile;
+    }
+
+    /**
+     * Returns the codec used to store target files compressed, or null if
+     * files are copied as they are. Defaults to null.
+     * 
+     * @return codec
+     */
+    public CompressionCodec getCompressionCodec() {
+        return this.compressionCodec;
+    }
+
+    /**
+     * Returns the number of files compressed at the same time. Defaults to
+     * the number of available processors.
+     * 
+     * @return threads
+     */
+    public int getCompressionThreads() {
+        return this.compressionThreads;
+    }
+
     /**
      * Returns an unmodifiable List of the inclusion filters. Defaults to an
      * empty list.
@@ -153,6 +393,37 @@ public final class SyncOptions {
         return this.matchAllExclusionFilters;
     }
 
+    /**
+     * Returns true if the file passes the inclusion filters and is not removed
+     * by the exclusion filters, i.e. if it takes part in the sync.
+     * 
+     * @param f
+     *            file to check
+     * @return boolean
+     */
+    public boolean isIncluded(File f) {
+        if (!matchesFilters(f, inclusionFilters, matchAllInclusionFilters)) {
+            return false;
+        } else {
+            return exclusionFilters.isEmpty() || !matchesFilters(f, exclusionFilters, matchAllExclusionFilters);
+        }
+    }
+
+    // returns true if file matches a filter
+    private static boolean matchesFilters(File f, List<SyncFilter> filters, boolean all) {
+        boolean rval = true;
+        for (SyncFilter filter : filters) {
+            if (!filter.matches(f) && all) {
+                return false;
+            } else if (filter.matches(f) && !all) {
+                return true;
+            }
+
+            rval = filter.matches(f);
+        }
+        return rval;
+    }
+
     /**
      * This builder class builds a complete SyncOptions object and returns it
      * 
@@ -167,10 +438,40 @@ public final class SyncOptions {
 
         private boolean smartCopy = true;
 
+        private ChangeDetector changeDetector = new ModifiedTimeChangeDetector();
+
         private boolean preserveModifiedTime = true;
 
         private long chunkSize = 1024 * 1024 * 16;
 
+        private boolean sparseCopy = false;
+
+        private long directIoThreshold = 0L;
+
+        private boolean appendCopy = false;
+
+        private boolean verifyAppendPrefix = false;
+
+        private boolean verify = false;
+
+        private int verifyRetries = 2;
+
+        private List<File> linkReferences = new ArrayList<>();
+
+        private File pathIndexDirectory = null;
+
+        private boolean inodeOrder = false;
+
+        private int auditThreadsPerDevice = 4;
+
+        private File changeLog = null;
+
+        private File digestFile = null;
+
+        private CompressionCodec compressionCodec = null;
+
+        private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
         private List<SyncFilter> inclusionFilters = new ArrayList<>();
 
         private List<SyncFilter> exclusionFilters = new ArrayList<>();
@@ -215,6 +516,21 @@ public final class SyncOptions {
             return this;
         }
 
+        /**
+         * Sets the ChangeDetector used by smart copy. The default is a
+         * ModifiedTimeChangeDetector with a 2 second tolerance.
+         * 
+         * @param d
+         *            detector
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder changeDetector(ChangeDetector d) {
+            if (d != null) {
+                this.changeDetector = d;
+            }
+            return this;
+        }
+
         /**
          * Sets the preserve modified time option. The default is true.
          * 
@@ -240,6 +556,242 @@ public final class SyncOptions {
             return this;
         }
 
+        /**
+         * Sets the sparse copy option. When true, blocks that contain only
+         * zeros are not written, leaving holes in the target. The default is
+         * false.
+         * 
+         * @param b
+         *            sparse
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder sparseCopy(boolean b) {
+            this.sparseCopy = b;
+            return this;
+        }
+
+        /**
+         * Sets the size from which files are copied with direct I/O (O_DIRECT),
+         * so large copies do not evict other data from the page cache. Needs a
+         * Java 10+ runtime and a file system that accepts O_DIRECT; otherwise
+         * the normal copy is used. Not applied to sparse, verified or appended
+         * copies. Zero or less disables it, which is the default.
+         * 
+         * @param l
+         *            threshold in bytes
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder directIoThreshold(long l) {
+            this.directIoThreshold = l;
+            return this;
+        }
+
+        /**
+         * Sets the append copy option. When true, a target that is shorter and
+         * older than its source, and whose last block matches the same range
+         * of the source, is brought up to date by appending only the new
+         * bytes. Useful for logs and journals. The default is false.
+         * 
+         * @param b
+         *            append
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder appendCopy(boolean b) {
+            this.appendCopy = b;
+            return this;
+        }
+
+        /**
+         * Sets the verify append prefix option. When true, the whole target is
+         * compared against the source before appending to it, rather than only
+         * its last block. The default is false.
+         * 
+         * @param b
+         *            verify
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder verifyAppendPrefix(boolean b) {
+            this.verifyAppendPrefix = b;
+            return this;
+        }
+
+        /**
+         * Sets the verify option. When true, a CRC32 is computed over the bytes
+         * as they are copied, and the written target is read back and checked
+         * against it. Files that still mismatch after the retries are reported
+         * in the SyncResults. Copies go through a buffer instead of
+         * transferFrom while this is on. The default is false.
+         * 
+         * @param b
+         *            verify
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder verify(boolean b) {
+            this.verify = b;
+            return this;
+        }
+
+        /**
+         * Sets the number of times a copy is repeated after a verification
+         * mismatch. The default is 2.
+         * 
+         * @param n
+         *            retries
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder verifyRetries(int n) {
+            this.verifyRetries = n;
+            return this;
+        }
+
+        /**
+         * Sets the snapshot reference directories, overwriting any previous
+         * list built with .addLinkReference()
+         * 
+         * @param d
+         *            directories
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder setLinkReferences(List<File> d) {
+            if (d != null) {
+                this.linkReferences = d;
+            }
+            return this;
+        }
+
+        /**
+         * Adds a snapshot reference directory, typically a previous snapshot of
+         * the same source. A source file that needs copying, but whose
+         * counterpart in a reference directory is unchanged according to the
+         * ChangeDetector, is hard-linked to that counterpart instead.
+         * References are tried in the order they were added.
+         * 
+         * @param d
+         *            directory
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder addLinkReference(File d) {
+            this.linkReferences.add(d);
+            return this;
+        }
+
+        /**
+         * Sets the directory for the scan index. The Syncer records the source
+         * tree in a compact off-heap index while scanning; when a directory is
+         * set, the index is memory-mapped from a temporary file there instead
+         * of held in direct memory, so very large trees can be paged out. The
+         * default is null (direct memory).
+         * 
+         * @param d
+         *            directory
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder pathIndexDirectory(File d) {
+            this.pathIndexDirectory = d;
+            return this;
+        }
+
+        /**
+         * Sets whether or not the entries of each source directory are sorted
+         * by inode number (from the file key) before the scan descends into
+         * them and before they are synced, instead of being taken in
+         * directory listing order. On file systems that lay inodes and data
+         * out in inode order, this turns scattered seeks into mostly forward
+         * ones, which helps rotational and some network storage. Has no
+         * effect where the platform has no file keys. The default is false.
+         * 
+         * @param b
+         *            boolean
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder inodeOrder(boolean b) {
+            this.inodeOrder = b;
+            return this;
+        }
+
+        /**
+         * Sets the number of files an audit with content comparison hashes
+         * at the same time on each device (file store). Source and target on
+         * different devices are hashed concurrently, each with this limit.
+         * The default is 4.
+         * 
+         * @param n
+         *            threads
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder auditThreadsPerDevice(int n) {
+            this.auditThreadsPerDevice = n;
+            return this;
+        }
+
+        /**
+         * Sets the change log file. Each synchronize replaces it with one
+         * tab-separated line per change made to the target: the action
+         * (COPIED, APPENDED, LINKED, DELETED, MKDIR or RMDIR), the size and
+         * modified time in milliseconds (-1 where not known), and the path
+         * relative to the target. Lines are written by a background thread
+         * and flushed at least once a second. The default is null (no log).
+         * 
+         * @param f
+         *            file
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder changeLog(File f) {
+            this.changeLog = f;
+            return this;
+        }
+
+        /**
+         * Sets the digest file. After each successful synchronize, a Merkle
+         * digest of the scanned source tree (see TreeDigest) is written to it.
+         * With smart copy on, the next synchronize between the same
+         * directories skips every file and directory whose digest has not
+         * changed since, without looking at the target. Changes made to the
+         * target by anything else are not noticed there. The default is null
+         * (no digest).
+         * 
+         * @param f
+         *            file
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder digestFile(File f) {
+            this.digestFile = f;
+            return this;
+        }
+
+        /**
+         * Sets the codec for a compressed mirror. When set, each target file
+         * is stored compressed under the source name plus the codec's
+         * suffix, and the original size and modified time of the files in
+         * each target directory are kept in a sidecar file there, so smart
+         * copy compares against those without reading the compressed files.
+         * The change detector, append, sparse, direct, verify and link
+         * options do not apply to compressed files. The default is null (no
+         * compression).
+         * 
+         * @param c
+         *            codec
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder compressionCodec(CompressionCodec c) {
+            this.compressionCodec = c;
+            return this;
+        }
+
+        /**
+         * Sets the number of files compressed at the same time. Compression
+         * runs on its own pool while the tree walk continues. The default is
+         * the number of available processors.
+         * 
+         * @param n
+         *            threads
+         * @return SyncOptionsBuilder
+         */
+        public SyncOptionsBuilder compressionThreads(int n) {
+            this.compressionThreads = n;
+            return this;
+        }
+
         /**
          * Sets the inclusion filters, overwriting any previous list built with
          * .addInclusionFilter()
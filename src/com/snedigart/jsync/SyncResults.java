@@ -13,6 +13,10 @@
  */
 package com.snedigart.jsync;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,8 +34,16 @@ public final class SyncResults {
 
     private final int numFilesCopied;
 
+    private final int numFilesAppended;
+
+    private final int numFilesLinked;
+
     private final int numFilesFiltered;
 
+    private final int numVerifyRetries;
+
+    private final List<File> verifyFailures;
+
     private final long scanTimeNanos;
 
     private final long totalTimeNanos;
@@ -41,7 +53,11 @@ public final class SyncResults {
         this.numFilesScanned = builder.numFilesScanned;
         this.numFilesDeleted = builder.numFilesDeleted;
         this.numFilesCopied = builder.numFilesCopied;
+        this.numFilesAppended = builder.numFilesAppended;
+        this.numFilesLinked = builder.numFilesLinked;
         this.numFilesFiltered = builder.numFilesFiltered;
+        this.numVerifyRetries = builder.numVerifyRetries;
+        this.verifyFailures = new ArrayList<>(builder.verifyFailures);
         this.scanTimeNanos = builder.scanTimeNanos;
         this.totalTimeNanos = builder.totalTimeNanos;
     }
@@ -67,6 +83,22 @@ public final class SyncResults {
         return numFilesCopied;
     }
 
+    /**
+     * @return the numFilesAppended, a subset of the copied files that only had
+     *         their new tail transferred
+     */
+    public int getNumFilesAppended() {
+        return numFilesAppended;
+    }
+
+    /**
+     * @return the numFilesLinked, files hard-linked from a snapshot reference
+     *         instead of copied
+     */
+    public int getNumFilesLinked() {
+        return numFilesLinked;
+    }
+
     /**
      * @return the numFilesFiltered
      */
@@ -74,6 +106,21 @@ public final class SyncResults {
         return numFilesFiltered;
     }
 
+    /**
+     * @return the number of copies repeated after a verification mismatch
+     */
+    public int getNumVerifyRetries() {
+        return numVerifyRetries;
+    }
+
+    /**
+     * @return an unmodifiable List of the targets that did not match their
+     *         source after all verification retries
+     */
+    public List<File> getVerifyFailures() {
+        return Collections.unmodifiableList(verifyFailures);
+    }
+
     /**
      * @return the scanTimeNanos
      */
@@ -106,14 +153,18 @@ public final class SyncResults {
         b.append("Scanned    : ").append(numFilesScanned).append(System.lineSeparator());
         b.append("Filtered   : ").append(numFilesFiltered).append(System.lineSeparator());
         b.append("Copied     : ").append(numFilesCopied).append(System.lineSeparator());
+        b.append("Appended   : ").append(numFilesAppended).append(System.lineSeparator());
+        b.append("Linked     : ").append(numFilesLinked).append(System.lineSeparator());
         b.append("Deleted    : ").append(numFilesDeleted).append(System.lineSeparator());
+        b.append("Retried    : ").append(numVerifyRetries).append(System.lineSeparator());
+        b.append("Mismatched : ").append(verifyFailures.size()).append(System.lineSeparator());
         b.append("Scan Time  : ").append(getTimeString(scanTimeNanos)).append(System.lineSeparator());
         b.append("Copy Time  : ").append(getTimeString(getCopyTimeNanos())).append(System.lineSeparator());
         b.append("Total Time : ").append(getTimeString(totalTimeNanos)).append(System.lineSeparator());
         return b.toString();
     }
 
-    private String getTimeString(long nanos) {
+    static String getTimeString(long nanos) {
         long remaining = nanos;
         long hours = TimeUnit.NANOSECONDS.toHours(remaining);
         remaining -= TimeUnit.HOURS.toNanos(hours);
@@ -161,8 +212,16 @@ public final class SyncResults {
 
         private int numFilesCopied = 0;
 
+        private int numFilesAppended = 0;
+
+        private int numFilesLinked = 0;
+
         private int numFilesFiltered = 0;
 
+        private int numVerifyRetries = 0;
+
+        private List<File> verifyFailures = new ArrayList<>();
+
         private long scanTimeNanos = 0L;
 
         private long totalTimeNanos = 0L;
@@ -176,6 +235,29 @@ public final class SyncResults {
             return new SyncResults(this);
         }
 
+        /**
+         * Adds the counts, failures and times of the given results to this
+         * builder, for combining the results of several syncs
+         * 
+         * @param r
+         *            results to add
+         * @return SyncResultsBuilder
+         */
+        public SyncResultsBuilder add(SyncResults r) {
+            numFilesScanned += r.numFilesScanned;
+            numFilesDeleted += r.numFilesDeleted;
+            numFilesCopied += r.numFilesCopied;
+            numFilesAppended += r.numFilesAppended;
+            numFilesLinked += r.numFilesLinked;
+            numFilesFiltered += r.numFilesFiltered;
+            numVerifyRetries += r.numVerifyRetries;
+            verifyFailures = new ArrayList<>(verifyFailures);
+            verifyFailures.addAll(r.verifyFailures);
+            scanTimeNanos += r.scanTimeNanos;
+            totalTimeNanos += r.totalTimeNanos;
+            return this;
+        }
+
         /**
          * @param n
          *            numFilesScanned
@@ -206,6 +288,26 @@ public final class SyncResults {
             return this;
         }
 
+        /**
+         * @param n
+         *            numFilesAppended
+         * @return SyncResultsBuilder
+         */
+        public SyncResultsBuilder filesAppended(int n) {
+            numFilesAppended = n;
+            return this;
+        }
+
+        /**
+         * @param n
+         *            numFilesLinked
+         * @return SyncResultsBuilder
+         */
+        public SyncResultsBuilder filesLinked(int n) {
+            numFilesLinked = n;
+            return this;
+        }
+
         /**
          * @param n
          *            numFilesFiltered
@@ -216,6 +318,28 @@ public final class SyncResults {
             return this;
         }
 
+        /**
+         * @param n
+         *            numVerifyRetries
+         * @return SyncResultsBuilder
+         */
+        public SyncResultsBuilder verifyRetries(int n) {
+            numVerifyRetries = n;
+            return this;
+        }
+
+        /**
+         * @param f
+         *            targets that failed verification
+         * @return SyncResultsBuilder
+         */
+        public SyncResultsBuilder verifyFailures(List<File> f) {
+            if (f != null) {
+                verifyFailures = f;
+            }
+            return this;
+        }
+
         /**
          * @param ns
          *            time in nanoseconds
@@ -13,21 +13,39 @@
  */
 package com.snedigart.jsync;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SecureDirectoryStream;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.snedigart.jsync.codec.CompressionCodec;
 import com.snedigart.jsync.filter.SyncFilter;
 
 /**
@@ -39,7 +57,8 @@ import com.snedigart.jsync.filter.SyncFilter;
  */
 public final class Syncer {
 
-    private static final int TIME_PRECISION = 2000;
+    // directory handles held open at most by a relative scan or delete
+    private static final int MAX_OPEN_DIRECTORIES = 128;
 
     private final File source;
 
@@ -47,6 +66,14 @@ public final class Syncer {
 
     private final SyncOptions options;
 
+    private FileCopier copier;
+
+    private CompressedTarget compressed;
+
+    private ChangeLog changeLog;
+
+    private IoBudget budget;
+
     private int totalSourceFiles = 0;
 
     private int remainingSourceFiles = 0;
@@ -55,6 +82,8 @@ public final class Syncer {
 
     private int filesCopied = 0;
 
+    private int filesLinked = 0;
+
     private int filesFiltered = 0;
 
     private ProgressCallback callback;
@@ -82,6 +111,16 @@ public final class Syncer {
         }
     }
 
+    /**
+     * Sets the I/O budget shared with other Syncers of the same SyncJob
+     * 
+     * @param budget
+     *            budget, or null for unlimited
+     */
+    void setIoBudget(IoBudget budget) {
+        this.budget = budget;
+    }
+
     /**
      * This method performs the synchronization
      * 
@@ -91,7 +130,203 @@ public final class Syncer {
      * @throws IOException
      *             thrown on IO errors
      */
+    @SuppressWarnings("try")
     public SyncResults synchronize(ProgressCallback cb) throws IOException {
+        begin(cb);
+        changeLog = openChangeLog();
+
+        long start = System.nanoTime();
+        Path digest = null;
+        try {
+            try (ChangeLog log = changeLog) {
+                try (PathIndex index = newIndex(); CompressedTarget c = compressed) {
+                    scanSource(index);
+                    results.filesScanned(totalSourceFiles).scanTimeNanos(System.nanoTime() - start);
+
+                    remainingSourceFiles = totalSourceFiles;
+                    callback.call(remainingSourceFiles, totalSourceFiles, "Starting synchronize");
+                    digest = synchronize(index);
+                }
+
+                if (options.isDeleteEmptyTargetDirectories()) {
+                    deleteEmpties(target);
+                }
+            }
+            // a target that failed verification must be looked at again next time
+            if (digest != null && copier.getVerifyFailures().isEmpty()) {
+                Files.move(digest, options.getDigestFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            if (digest != null) {
+                Files.deleteIfExists(digest);
+            }
+        }
+
+        return finish(start);
+    }
+
+    /**
+     * This method compares the source and target without changing either. The
+     * source is scanned with the configured filters, like for a
+     * synchronize, and every included file is checked against its target by
+     * type, size and the change detector; with content comparison, files
+     * whose size matches are also hashed, on both sides at the same time.
+     * Target entries with no source are reported as extra. Compressed
+     * mirrors cannot be audited.
+     * 
+     * @param compareContent
+     *            true to compare file contents as well as metadata
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return report of the missing, extra and differing entries
+     * @throws IOException
+     *             thrown on IO errors, or if the target does not exist
+     */
+    public AuditReport audit(boolean compareContent, ProgressCallback cb) throws IOException {
+        if (options.getCompressionCodec() != null) {
+            throw new IOException("Compressed targets cannot be audited");
+        }
+        if (!target.exists()) {
+            throw new NoSuchFileException(target.toString());
+        }
+        begin(cb);
+
+        long start = System.nanoTime();
+        try (PathIndex index = newIndex();
+                Auditor auditor = new Auditor(options, source, target, compareContent, callback)) {
+            scanSource(index);
+            long scanNanos = System.nanoTime() - start;
+            callback.call(totalSourceFiles, totalSourceFiles, "Starting audit");
+            return auditor.audit(index, source, target, totalSourceFiles, start, scanNanos);
+        }
+    }
+
+    /**
+     * This method synchronizes only the listed paths, without walking either
+     * tree. Each path is relative to the source and target directories. A
+     * listed file is copied if it passes the filters and smart copy, after
+     * creating any missing target parent directories; a listed directory is
+     * created in the target, but its contents are not synced unless they are
+     * listed too; a listed path that no longer exists in the source is
+     * deleted from the target if deleteUnmatchedTargets is set. Empty target
+     * directories are not cleaned up, since that would touch unlisted paths.
+     * 
+     * @param paths
+     *            relative paths that changed
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return results of the sync
+     * @throws IOException
+     *             thrown on IO errors, or if a path is absolute or leaves the
+     *             source directory
+     */
+    public SyncResults synchronize(Iterable<String> paths, ProgressCallback cb) throws IOException {
+        Collection<String> list;
+        if (paths instanceof Collection) {
+            list = (Collection<String>) paths;
+        } else {
+            list = new ArrayList<>();
+            for (String p : paths) {
+                list.add(p);
+            }
+        }
+        return synchronize(list.iterator(), list.size(), cb);
+    }
+
+    /**
+     * This method synchronizes only the paths listed in a file, one relative
+     * path per line. See synchronize(Iterable, ProgressCallback). The file is
+     * read twice, once to count it and once streaming, so it is never held in
+     * memory.
+     * 
+     * @param changeList
+     *            UTF-8 file of relative paths, one per line
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return results of the sync
+     * @throws IOException
+     *             thrown on IO errors, or if a path is absolute or leaves the
+     *             source directory
+     */
+    public SyncResults synchronize(File changeList, ProgressCallback cb) throws IOException {
+        int count = 0;
+        try (BufferedReader r = Files.newBufferedReader(changeList.toPath(), StandardCharsets.UTF_8)) {
+            while (r.readLine() != null) {
+                count++;
+            }
+        }
+        try (BufferedReader r = Files.newBufferedReader(changeList.toPath(), StandardCharsets.UTF_8)) {
+            return synchronize(r.lines().iterator(), count, cb);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // runs a change-list sync
+    @SuppressWarnings("try")
+    private SyncResults synchronize(Iterator<String> paths, int count, ProgressCallback cb) throws IOException {
+        begin(cb);
+
+        long start = System.nanoTime();
+        totalSourceFiles = remainingSourceFiles = count;
+        results.filesScanned(totalSourceFiles).scanTimeNanos(0L);
+        callback.call(remainingSourceFiles, totalSourceFiles, "Starting synchronize");
+
+        Path sourcePath = source.toPath().normalize();
+        changeLog = openChangeLog();
+        try (ChangeLog log = changeLog; CompressedTarget c = compressed) {
+            synchronize(paths, sourcePath);
+        }
+
+        return finish(start);
+    }
+
+    // synchronizes each listed path on its own
+    private void synchronize(Iterator<String> paths, Path sourcePath) throws IOException {
+        while (paths.hasNext()) {
+            String rel = paths.next();
+            if (rel.isEmpty()) {
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
+                continue;
+            }
+            Path p = sourcePath.resolve(rel).normalize();
+            if (Paths.get(rel).isAbsolute() || !p.startsWith(sourcePath) || p.equals(sourcePath)) {
+                throw new IOException("Path is not below the source: " + rel);
+            }
+            File s = p.toFile();
+            File t = target.toPath().resolve(sourcePath.relativize(p)).toFile();
+
+            if (Files.isDirectory(p) && !Files.isSymbolicLink(p)) {
+                synchronizeDirectory(t, null, null);
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            } else if (Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+                File parent = t.getParentFile();
+                if (!parent.isDirectory()) {
+                    if (!parent.mkdirs()) {
+                        throw new IOException("Could not create target folder " + parent);
+                    }
+                    log(ChangeLog.Action.MKDIR, parent.toPath(), -1L, -1L);
+                }
+                boolean included = options.isIncluded(s);
+                if (!included) {
+                    filesFiltered++;
+                }
+                synchronizeFile(s, t, included, null);
+            } else {
+                if (options.isDeleteUnmatchedTargets()) {
+                    delete(t);
+                    if (compressed != null) {
+                        delete(compressed.targetFor(t));
+                    }
+                }
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            }
+        }
+    }
+
+    // resets the per-run state
+    private void begin(ProgressCallback cb) throws IOException {
         if (cb == null) {
             callback = (c, t, m) -> {
                 // no-op
@@ -101,109 +336,281 @@ public final class Syncer {
         }
 
         results = new SyncResults.SyncResultsBuilder();
+        copier = new FileCopier(options, budget);
+        compressed = options.getCompressionCodec() == null ? null : new CompressedTarget(options, budget);
+        changeLog = null;
 
-        totalSourceFiles = remainingSourceFiles = filesCopied = filesDeleted = filesFiltered = 0;
+        totalSourceFiles = remainingSourceFiles = filesCopied = filesLinked = filesDeleted = filesFiltered = 0;
         callback.call(remainingSourceFiles, totalSourceFiles, "Loading...");
 
-        long start = System.nanoTime();
-        scanSource();
-        results.filesScanned(totalSourceFiles).scanTimeNanos(System.nanoTime() - start);
-
-        remainingSourceFiles = totalSourceFiles;
-        callback.call(remainingSourceFiles, totalSourceFiles, "Starting synchronize");
-        synchronize(source, target);
-
-        if (options.isDeleteEmptyTargetDirectories()) {
-            deleteEmpties(target);
+        if (options.getChunkSize() <= 0) {
+            throw new IOException("Chunk size must be positive");
         }
+    }
 
+    // builds the results of the run
+    private SyncResults finish(long start) {
         results.totalTimeNanos(System.nanoTime() - start);
         callback.call(remainingSourceFiles, totalSourceFiles, "Done!");
 
-        results.filesCopied(filesCopied).filesDeleted(filesDeleted).filesFiltered(filesFiltered);
+        results.filesCopied(filesCopied).filesLinked(filesLinked).filesAppended(copier.getFilesAppended())
+                .filesDeleted(filesDeleted)
+                .filesFiltered(filesFiltered).verifyRetries(copier.getVerifyRetries())
+                .verifyFailures(copier.getVerifyFailures());
 
         return results.build();
     }
 
-    // performs the synchronize recursively
-    private void synchronize(File s, File t) throws IOException {
-        if (options.getChunkSize() <= 0) {
-            throw new IOException("Chunk size must be positive");
+    /**
+     * Performs the synchronize from the index. If a digest file is set, the
+     * digest of the index is written beside it and the entries whose digests
+     * match the previous one are skipped; the new digest is returned, to be
+     * moved into place once the synchronize has finished. It is deleted
+     * again if the synchronize fails.
+     */
+    private Path synchronize(PathIndex index) throws IOException {
+        File file = options.getDigestFile();
+        if (file == null || !index.isDirectory(index.root())) {
+            synchronize(index, index.root(), source, target, null, null, null);
+            return null;
         }
-        if (s.isDirectory()) {
-            if (!t.exists()) {
-                if (!t.mkdirs()) {
-                    throw new IOException("Could not create target folder " + t);
+        Path tmp = file.toPath().resolveSibling(file.getName() + ".tmp");
+        boolean done = false;
+        try {
+            String context = digestContext();
+            TreeDigest.write(index, context, tmp.toFile());
+            try (TreeDigest fresh = TreeDigest.open(tmp.toFile());
+                    TreeDigest previous = openDigest(file, context)) {
+                if (previous != null && fresh.matches(previous)) {
+                    remainingSourceFiles = 0;
+                    callback.call(remainingSourceFiles, totalSourceFiles, "Unchanged since the last synchronize");
+                } else {
+                    synchronize(index, index.root(), source, target, fresh.root(),
+                            previous == null ? null : previous.root(), null);
                 }
-            } else if (!t.isDirectory()) {
-                throw new IOException("Source and target are not of the same type");
             }
-            String[] sources = s.list();
-            Set<String> sourceNames = new HashSet<String>(Arrays.asList(sources));
-            String[] targets = t.list();
+            done = true;
+            return tmp;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Describes what a digest was taken for, so one from other settings is
+     * not trusted: the source and target, and a hash of every option that
+     * changes which targets a source tree leads to. Filters are described by
+     * their toString().
+     */
+    private String digestContext() {
+        CompressionCodec codec = options.getCompressionCodec();
+        StringBuilder b = new StringBuilder();
+        b.append(codec == null ? "" : codec.getSuffix()).append('\n');
+        b.append(options.isDeleteUnmatchedTargets()).append('\n');
+        b.append(options.isPreserveModifiedTime()).append('\n');
+        for (File ref : options.getLinkReferences()) {
+            b.append(ref.getAbsolutePath()).append('\0');
+        }
+        b.append('\n').append(options.isMatchAllInclusionFilters());
+        for (SyncFilter f : options.getInclusionFilters()) {
+            b.append('\0').append(f);
+        }
+        b.append('\n').append(options.isMatchAllExclusionFilters());
+        for (SyncFilter f : options.getExclusionFilters()) {
+            b.append('\0').append(f);
+        }
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] h = sha.digest(b.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(h.length * 2);
+        for (byte x : h) {
+            hex.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return source.getAbsolutePath() + "\n" + target.getAbsolutePath() + "\n" + hex;
+    }
 
-            if (options.isDeleteUnmatchedTargets()) {
-                for (String fName : targets) {
-                    if (!sourceNames.contains(fName)) {
-                        delete(new File(t, fName));
+    // opens the digest kept from the last synchronize, if there is a usable one
+    private TreeDigest openDigest(File file, String context) throws IOException {
+        if (!options.isSmartCopy() || !file.isFile()) {
+            return null;
+        }
+        TreeDigest digest;
+        try {
+            digest = TreeDigest.open(file);
+        } catch (IOException e) {
+            // unreadable digests only cost a full compare
+            return null;
+        }
+        if (!digest.getContext().equals(context)) {
+            digest.close();
+            return null;
+        }
+        return digest;
+    }
+
+    /**
+     * Performs the synchronize recursively, walking the source from the index
+     * built by the scan instead of listing and statting it again. Symbolic
+     * links were not followed by the scan, so they go through the File-based
+     * walk. Children whose digest records match the previous ones are
+     * skipped; either record may be null. Target files are statted through
+     * their open parent directory, if the platform has secure ones.
+     */
+    private void synchronize(PathIndex index, int e, File s, File t, TreeDigest.Node fresh, TreeDigest.Node previous,
+            SecureDirectoryStream<Path> targetDir) throws IOException {
+        int flags = index.flags(e);
+        if ((flags & PathIndex.SYMLINK) != 0) {
+            synchronize(s, t, targetDir);
+        } else if ((flags & PathIndex.DIRECTORY) != 0) {
+            Set<String> sourceNames = new HashSet<String>();
+            Set<String> sourceDirectories = new HashSet<String>();
+            for (int c = index.firstChild(e); c != PathIndex.NONE; c = index.nextSibling(c)) {
+                String fName = index.name(c);
+                sourceNames.add(fName);
+                int f = index.flags(c);
+                if ((f & PathIndex.DIRECTORY) != 0
+                        || compressed != null && (f & PathIndex.SYMLINK) != 0 && new File(s, fName).isDirectory()) {
+                    sourceDirectories.add(fName);
+                }
+            }
+            synchronizeDirectory(t, sourceNames, sourceDirectories);
+            try (SecureDirectoryStream<Path> dir = openDirectory(t.toPath())) {
+                for (int c = index.firstChild(e); c != PathIndex.NONE; c = index.nextSibling(c)) {
+                    String fName = index.name(c);
+                    int i = fresh == null ? -1 : fresh.find(fName);
+                    int j = previous == null ? -1 : previous.find(fName);
+                    if (j >= 0 && fresh.matches(i, previous, j)) {
+                        // unchanged since the last synchronize
+                        remainingSourceFiles -= fresh.files(i);
+                        callback.call(remainingSourceFiles, totalSourceFiles, "");
+                        continue;
                     }
+                    synchronize(index, c, new File(s, fName), new File(t, fName), i < 0 ? null : fresh.child(i),
+                            j < 0 ? null : previous.child(j), dir);
                 }
             }
-
-            for (String fName : sources) {
-                File src = new File(s, fName);
-                File tgt = new File(t, fName);
-                synchronize(src, tgt);
+            if (compressed != null) {
+                compressed.leave(t);
             }
         } else {
-            if (options.isDeleteUnmatchedTargets() && t.exists() && t.isDirectory()) {
-                delete(t);
-            }
-            if (t.exists()) {
-                long sts = s.lastModified() / TIME_PRECISION;
-                long tts = t.lastModified() / TIME_PRECISION;
-                boolean filt = checkFilters(s);
-                if (filt && (!options.isSmartCopy() || sts == 0 || sts != tts || s.length() != t.length())) {
-                    callback.call(remainingSourceFiles--, totalSourceFiles, "Copying " + s.getName());
-                    copyFile(s, t);
-                } else {
-                    callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            synchronizeFile(s, t, (flags & PathIndex.INCLUDED) != 0, targetDir);
+        }
+    }
+
+    // performs the synchronize recursively; the target directory may be null
+    private void synchronize(File s, File t, SecureDirectoryStream<Path> targetDir) throws IOException {
+        if (s.isDirectory()) {
+            String[] sources = s.list();
+            Set<String> sourceDirectories = new HashSet<String>();
+            if (compressed != null) {
+                for (String fName : sources) {
+                    if (new File(s, fName).isDirectory()) {
+                        sourceDirectories.add(fName);
+                    }
                 }
-            } else {
-                if (checkFilters(s)) {
-                    callback.call(remainingSourceFiles--, totalSourceFiles, "Copying " + s.getName());
-                    copyFile(s, t);
-                } else {
-                    callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            }
+            synchronizeDirectory(t, new HashSet<String>(Arrays.asList(sources)), sourceDirectories);
+            try (SecureDirectoryStream<Path> dir = openDirectory(t.toPath())) {
+                for (String fName : sources) {
+                    File src = new File(s, fName);
+                    File tgt = new File(t, fName);
+                    synchronize(src, tgt, dir);
                 }
             }
+            if (compressed != null) {
+                compressed.leave(t);
+            }
+        } else {
+            synchronizeFile(s, t, options.isIncluded(s), targetDir);
         }
     }
 
-    // returns true if file needs to be included
-    private boolean checkFilters(File f) {
-        if (!matchesFilters(f, options.getInclusionFilters(), options.isMatchAllInclusionFilters())) {
-            return false;
-        } else {
-            return options.getExclusionFilters().isEmpty()
-                    || !matchesFilters(f, options.getExclusionFilters(), options.isMatchAllExclusionFilters());
+    /**
+     * Creates the target directory and deletes the entries in it that are not
+     * among the source names. Nothing is deleted if the names are null. The
+     * source directories among the names are only needed when compressing,
+     * where files and directories map to different target names.
+     */
+    private void synchronizeDirectory(File t, Set<String> sourceNames, Set<String> sourceDirectories)
+            throws IOException {
+        if (!t.exists()) {
+            if (!t.mkdirs()) {
+                throw new IOException("Could not create target folder " + t);
+            }
+            log(ChangeLog.Action.MKDIR, t.toPath(), -1L, -1L);
+        } else if (!t.isDirectory()) {
+            throw new IOException("Source and target are not of the same type");
         }
 
+        Set<String> targetNames = sourceNames;
+        if (compressed != null && sourceNames != null) {
+            targetNames = compressed.targetNames(t, sourceNames, sourceDirectories);
+        }
+        if (options.isDeleteUnmatchedTargets() && targetNames != null) {
+            for (String fName : t.list()) {
+                if (!targetNames.contains(fName)) {
+                    delete(new File(t, fName));
+                }
+            }
+        }
     }
 
-    // returns true if file matches a filter
-    private boolean matchesFilters(File f, List<SyncFilter> filters, boolean all) {
-        boolean rval = true;
-        for (SyncFilter filter : filters) {
-            if (!filter.matches(f) && all) {
-                return false;
-            } else if (filter.matches(f) && !all) {
-                return true;
+    /**
+     * Copies a single file if it is included and changed. The target is
+     * statted once, through the target directory if it is open, and its
+     * attributes are handed to the change detector.
+     */
+    private void synchronizeFile(File s, File t, boolean included, SecureDirectoryStream<Path> targetDir)
+            throws IOException {
+        if (compressed != null) {
+            if (options.isDeleteUnmatchedTargets() && t.isDirectory()) {
+                delete(t);
+            }
+            compressFile(s, t, included);
+            return;
+        }
+        BasicFileAttributes attrs = targetAttributes(t, targetDir);
+        if (attrs != null && attrs.isDirectory() && options.isDeleteUnmatchedTargets()) {
+            delete(t);
+            attrs = null;
+        }
+        if (attrs != null) {
+            if (included && (!options.isSmartCopy() || options.getChangeDetector().hasChanged(s, t, attrs))) {
+                callback.call(remainingSourceFiles--, totalSourceFiles, "Copying " + s.getName());
+                copyFile(s, t);
+            } else {
+                if (included) {
+                    options.getChangeDetector().synced(s, t, attrs);
+                }
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
             }
+        } else {
+            if (included) {
+                callback.call(remainingSourceFiles--, totalSourceFiles, "Copying " + s.getName());
+                copyFile(s, t);
+            } else {
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            }
+        }
+    }
 
-            rval = filter.matches(f);
+    // queues a file for compression if it is included and changed
+    private void compressFile(File s, File t, boolean included) throws IOException {
+        File z = compressed.targetFor(t);
+        if (included && !Files.isSymbolicLink(s.toPath())
+                && (!options.isSmartCopy() || !compressed.isCurrent(s, z))) {
+            callback.call(remainingSourceFiles--, totalSourceFiles, "Compressing " + s.getName());
+            compressed.submit(s, z);
+            filesCopied++;
+        } else {
+            callback.call(remainingSourceFiles--, totalSourceFiles, "");
         }
-        return rval;
     }
 
     // copies a file
@@ -212,33 +619,135 @@ public final class Syncer {
         if (Files.isSymbolicLink(s.toPath())) {
             return;
         }
-        try (FileInputStream is = new FileInputStream(s); FileOutputStream os = new FileOutputStream(t)) {
-            FileChannel iChannel = is.getChannel();
-            FileChannel oChannel = os.getChannel();
-            long doneBytes = 0L;
-            long todoBytes = s.length();
-            while (todoBytes != 0L) {
-                long iBytes = Math.min(todoBytes, options.getChunkSize());
-                long transferred = oChannel.transferFrom(iChannel, doneBytes, iBytes);
-                if (iBytes != transferred) {
-                    throw new IOException("Error during file transfer");
-                }
-                doneBytes += transferred;
-                todoBytes -= transferred;
-            }
-
-            filesCopied++;
+        if (!options.getLinkReferences().isEmpty() && linkFromReference(s, t)) {
+            return;
+        }
+        unshare(t);
+        int failures = copier.getVerifyFailures().size();
+        int appended = copier.getFilesAppended();
+        copier.copy(s, t);
+        filesCopied++;
+        if (copier.getVerifyFailures().size() != failures) {
+            callback.call(remainingSourceFiles, totalSourceFiles, "Verification failed for " + s.getName());
         }
 
         if (options.isPreserveModifiedTime()) {
-            t.setLastModified(s.lastModified());
+            Files.setLastModifiedTime(t.toPath(), Files.getLastModifiedTime(s.toPath()));
+        }
+        if (changeLog != null) {
+            log(copier.getFilesAppended() != appended ? ChangeLog.Action.APPENDED : ChangeLog.Action.COPIED,
+                    t.toPath(), t.length(), t.lastModified());
         }
+        options.getChangeDetector().synced(s, t);
+    }
+
+    /**
+     * Removes a target that may share its inode with a file in another
+     * snapshot, so the copy writes a new file instead of changing both. With
+     * link references every existing target is removed, since it was probably
+     * linked from one; otherwise only targets with more than one link are.
+     */
+    private void unshare(File t) throws IOException {
+        Path p = t.toPath();
+        boolean file;
+        int links;
+        try {
+            Map<String, Object> attrs = Files.readAttributes(p, "unix:isRegularFile,nlink", LinkOption.NOFOLLOW_LINKS);
+            file = Boolean.TRUE.equals(attrs.get("isRegularFile"));
+            links = (Integer) attrs.get("nlink");
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no link counts here
+            file = Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS);
+            links = 1;
+        }
+        if (file && (!options.getLinkReferences().isEmpty() || links > 1)) {
+            Files.delete(p);
+        }
+    }
+
+    /**
+     * Hard-links the target to the same file in the first reference directory
+     * that holds an unchanged copy of the source. Returns false if there is
+     * none, or if the link cannot be made (e.g. across file systems), in which
+     * case the file is copied instead.
+     */
+    private boolean linkFromReference(File s, File t) throws IOException {
+        Path rel = source.toPath().relativize(s.toPath());
+        for (File refRoot : options.getLinkReferences()) {
+            File ref = refRoot.toPath().resolve(rel).toFile();
+            if (!ref.isFile() || options.getChangeDetector().hasChanged(s, ref)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(t.toPath());
+                Files.createLink(t.toPath(), ref.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            }
+            filesLinked++;
+            log(ChangeLog.Action.LINKED, t.toPath(), t.length(), t.lastModified());
+            options.getChangeDetector().synced(s, t);
+            return true;
+        }
+        return false;
     }
 
     // deletes a file or directory, recursively
     private void delete(File file) throws IOException {
-        Path path = file.toPath();
-        if (Files.notExists(path)) {
+        Path path = file.toPath().toAbsolutePath();
+        try (SecureDirectoryStream<Path> parent = openParent(path)) {
+            if (parent != null) {
+                deleteRelative(parent, path.getFileName(), path, 0);
+                return;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        deleteWalk(path);
+    }
+
+    /**
+     * Deletes an entry through its parent's directory handle, so no path is
+     * resolved again from the root and nothing can be swapped in along the
+     * way: directories are opened without following links, and a link is
+     * deleted, never followed. Below MAX_OPEN_DIRECTORIES levels the path
+     * walk is used, to bound the open handles.
+     */
+    private void deleteRelative(SecureDirectoryStream<Path> parent, Path name, Path path, int depth)
+            throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = parent.getFileAttributeView(name, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .readAttributes();
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            parent.deleteFile(name);
+            filesDeleted++;
+            log(ChangeLog.Action.DELETED, path, attrs.size(), attrs.lastModifiedTime().toMillis());
+            return;
+        }
+        if (depth >= MAX_OPEN_DIRECTORIES) {
+            deleteWalk(path);
+            return;
+        }
+        try (SecureDirectoryStream<Path> dir = parent.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS)) {
+            for (Path p : dir) {
+                deleteRelative(dir, p.getFileName(), path.resolve(p.getFileName()), depth + 1);
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        parent.deleteDirectory(name);
+        log(ChangeLog.Action.RMDIR, path, -1L, -1L);
+    }
+
+    // deletes a file or directory, recursively, by path
+    private void deleteWalk(Path path) throws IOException {
+        if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
             return;
         }
 
@@ -247,50 +756,292 @@ public final class Syncer {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 Files.delete(file);
                 filesDeleted++;
+                log(ChangeLog.Action.DELETED, file, attrs.size(), attrs.lastModifiedTime().toMillis());
                 return FileVisitResult.CONTINUE;
             }
 
             @Override
             public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
                 Files.delete(dir);
+                log(ChangeLog.Action.RMDIR, dir, -1L, -1L);
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
+    // deletes the empty directories in a tree, bottom up
     private void deleteEmpties(File file) throws IOException {
-        Path path = file.toPath();
+        Path path = file.toPath().toAbsolutePath();
         if (Files.notExists(path)) {
             return;
         }
+        try (SecureDirectoryStream<Path> parent = openParent(path)) {
+            if (parent != null && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                deleteEmptiesRelative(parent, path.getFileName(), path, 0);
+                return;
+            }
+        }
+        deleteEmptiesWalk(path);
+    }
 
+    // returns true if the directory was empty and is now deleted
+    private boolean deleteEmptiesRelative(SecureDirectoryStream<Path> parent, Path name, Path path, int depth)
+            throws IOException {
+        if (depth >= MAX_OPEN_DIRECTORIES) {
+            deleteEmptiesWalk(path);
+            return Files.notExists(path, LinkOption.NOFOLLOW_LINKS);
+        }
+        boolean empty = true;
+        try (SecureDirectoryStream<Path> dir = parent.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS)) {
+            for (Path p : dir) {
+                Path n = p.getFileName();
+                BasicFileAttributes attrs = dir
+                        .getFileAttributeView(n, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                        .readAttributes();
+                if (!attrs.isDirectory() || !deleteEmptiesRelative(dir, n, path.resolve(n), depth + 1)) {
+                    empty = false;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        if (empty) {
+            try {
+                parent.deleteDirectory(name);
+            } catch (DirectoryNotEmptyException e) {
+                return false;
+            }
+            log(ChangeLog.Action.RMDIR, path, -1L, -1L);
+        }
+        return empty;
+    }
+
+    private void deleteEmptiesWalk(Path path) throws IOException {
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
             @Override
             public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
                 if (dir.toFile().list().length == 0) {
                     Files.delete(dir);
+                    log(ChangeLog.Action.RMDIR, dir, -1L, -1L);
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
     }
 
-    // scans the source directory to count files
-    private void scanSource() throws IOException {
+    /**
+     * Reads the attributes of a target without following links, relative to
+     * its open parent directory if there is one. Returns null if the target
+     * does not exist.
+     */
+    private static BasicFileAttributes targetAttributes(File t, SecureDirectoryStream<Path> targetDir)
+            throws IOException {
+        try {
+            if (targetDir != null) {
+                return targetDir.getFileAttributeView(t.toPath().getFileName(), BasicFileAttributeView.class,
+                        LinkOption.NOFOLLOW_LINKS).readAttributes();
+            }
+            return Files.readAttributes(t.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the parent of a path as a SecureDirectoryStream, or returns null
+     * where the platform has none (or the path has no parent)
+     */
+    private static SecureDirectoryStream<Path> openParent(Path path) throws IOException {
+        Path parent = path.getParent();
+        return parent == null ? null : openDirectory(parent);
+    }
+
+    // opens a directory as a SecureDirectoryStream, or returns null where the platform has none
+    private static SecureDirectoryStream<Path> openDirectory(Path dir) throws IOException {
+        DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+        if (ds instanceof SecureDirectoryStream) {
+            return (SecureDirectoryStream<Path>) ds;
+        }
+        ds.close();
+        return null;
+    }
+
+    // opens the change log for a run, if one is configured
+    private ChangeLog openChangeLog() throws IOException {
+        ChangeLog log = options.getChangeLog() == null ? null : new ChangeLog(options.getChangeLog(), target);
+        if (compressed != null) {
+            // compressed files are logged once they are written
+            compressed.logTo(log);
+        }
+        return log;
+    }
+
+    // records a change in the change log, if there is one
+    private void log(ChangeLog.Action action, Path path, long size, long modified) throws IOException {
+        if (changeLog != null) {
+            changeLog.record(action, path, size, modified);
+        }
+    }
+
+    // creates the index for a scan, mapped from a file if so configured
+    private PathIndex newIndex() throws IOException {
+        return options.getPathIndexDirectory() == null ? new PathIndex()
+                : new PathIndex(options.getPathIndexDirectory());
+    }
+
+    // scans the source directory into the index and counts files
+    private void scanSource(PathIndex index) throws IOException {
         Path path = source.toPath();
         if (Files.notExists(path)) {
-            return;
+            throw new NoSuchFileException(source.toString());
         }
 
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            DirectoryStream<Path> ds = Files.newDirectoryStream(path);
+            if (ds instanceof SecureDirectoryStream || options.isInodeOrder()) {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                index.set(index.root(), 0L, attrs.lastModifiedTime().toMillis(), PathIndex.DIRECTORY);
+                scanDirectory(index, index.root(), path, ds, 0);
+                return;
+            }
+            ds.close();
+        }
+
+        Deque<Integer> parents = new ArrayDeque<>();
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                int e;
+                if (parents.isEmpty()) {
+                    e = index.root();
+                    index.set(e, 0L, attrs.lastModifiedTime().toMillis(), PathIndex.DIRECTORY);
+                } else {
+                    e = index.add(parents.peek(), dir.getFileName().toString(), 0L,
+                            attrs.lastModifiedTime().toMillis(), PathIndex.DIRECTORY);
+                }
+                parents.push(e);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                parents.pop();
+                return FileVisitResult.CONTINUE;
+            }
+
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (!checkFilters(file.toFile())) {
+                int flags = 0;
+                if (options.isIncluded(file.toFile())) {
+                    flags |= PathIndex.INCLUDED;
+                } else {
                     filesFiltered++;
                 }
+                if (attrs.isSymbolicLink()) {
+                    flags |= PathIndex.SYMLINK;
+                }
+                long modified = attrs.lastModifiedTime().toMillis();
+                if (parents.isEmpty()) {
+                    index.set(index.root(), attrs.size(), modified, flags);
+                } else {
+                    index.add(parents.peek(), file.getFileName().toString(), attrs.size(), modified, flags);
+                }
                 totalSourceFiles++;
                 return FileVisitResult.CONTINUE;
             }
         });
     }
+
+    /**
+     * Scans a directory into the index and closes its stream. Where the stream
+     * is a SecureDirectoryStream, attributes are read and subdirectories
+     * opened relative to it, without resolving paths from the root again. With
+     * inode order, entries are sorted by inode, so the scan descends into
+     * subdirectories, and the sync later visits the entries, in inode order.
+     */
+    private void scanDirectory(PathIndex index, int parent, Path dir, DirectoryStream<Path> ds, int depth)
+            throws IOException {
+        try {
+            SecureDirectoryStream<Path> sds = ds instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) ds
+                    : null;
+            List<Path> paths = new ArrayList<>();
+            List<BasicFileAttributes> attrs = new ArrayList<>();
+            try {
+                for (Path p : ds) {
+                    paths.add(p);
+                    attrs.add(sds == null
+                            ? Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)
+                            : sds.getFileAttributeView(p.getFileName(), BasicFileAttributeView.class,
+                                    LinkOption.NOFOLLOW_LINKS).readAttributes());
+                }
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            Integer[] order = new Integer[paths.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            if (options.isInodeOrder()) {
+                long[] inodes = new long[order.length];
+                for (int i = 0; i < order.length; i++) {
+                    inodes[i] = inodeOf(attrs.get(i));
+                }
+                Arrays.sort(order, (x, y) -> Long.compare(inodes[x], inodes[y]));
+            }
+            // bound the open handles on very deep trees
+            if (depth >= MAX_OPEN_DIRECTORIES) {
+                sds = null;
+                ds.close();
+            }
+
+            for (int i : order) {
+                Path p = paths.get(i);
+                BasicFileAttributes a = attrs.get(i);
+                String name = p.getFileName().toString();
+                long modified = a.lastModifiedTime().toMillis();
+                if (a.isDirectory()) {
+                    DirectoryStream<Path> child = sds == null ? Files.newDirectoryStream(p)
+                            : sds.newDirectoryStream(p.getFileName(), LinkOption.NOFOLLOW_LINKS);
+                    scanDirectory(index, index.add(parent, name, 0L, modified, PathIndex.DIRECTORY), p, child,
+                            depth + 1);
+                    continue;
+                }
+                int flags = 0;
+                if (options.isIncluded(p.toFile())) {
+                    flags |= PathIndex.INCLUDED;
+                } else {
+                    filesFiltered++;
+                }
+                if (a.isSymbolicLink()) {
+                    flags |= PathIndex.SYMLINK;
+                }
+                index.add(parent, name, a.size(), modified, flags);
+                totalSourceFiles++;
+            }
+        } finally {
+            ds.close();
+        }
+    }
+
+    // the inode number from a Unix file key such as "(dev=803,ino=1234)", or
+    // 0 where there is none
+    private static long inodeOf(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key == null) {
+            return 0L;
+        }
+        String s = key.toString();
+        int i = s.indexOf("ino=");
+        if (i < 0) {
+            return 0L;
+        }
+        long inode = 0L;
+        for (i += 4; i < s.length() && Character.isDigit(s.charAt(i)); i++) {
+            inode = inode * 10 + (s.charAt(i) - '0');
+        }
+        return inode;
+    }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A persisted Merkle tree of a directory tree's metadata. Each file has a
+ * digest of its size, modified time and whether it passed the sync filters;
+ * each directory has a digest of its children's names and digests, so two
+ * trees whose digests match at a directory are the same below it. Records are
+ * read from the file on demand, one directory at a time, so comparing two
+ * digest files costs time in proportion to what differs between them rather
+ * than to the size of the trees. Symbolic links are not followed by the scan,
+ * so they and the directories above them never match.
+ * 
+ * Example: compare the digest a sync left behind against one copied from
+ * another host with try (TreeDigest a = TreeDigest.open(f1); TreeDigest b =
+ * TreeDigest.open(f2)) { a.compare(b); }
+ *
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class TreeDigest implements Closeable {
+
+    private static final int MAGIC = 0x4A53544D;
+
+    private static final int VERSION = 1;
+
+    private static final int DIGEST_BYTES = 32;
+
+    // root digest, root file count and root offset at the end of the file
+    private static final int TRAILER_BYTES = DIGEST_BYTES + Long.BYTES * 2;
+
+    private static final byte FILE = 0;
+
+    private static final byte DIRECTORY = 1;
+
+    // digest of entries that can never be proven unchanged
+    private static final byte[] VOLATILE = new byte[DIGEST_BYTES];
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final String context;
+
+    private final byte[] rootDigest;
+
+    private final long fileCount;
+
+    private final long rootOffset;
+
+    private TreeDigest(File file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        ByteBuffer header = read(0L, Integer.BYTES * 2 + Short.BYTES);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Unsupported digest file " + file);
+        }
+        byte[] c = new byte[header.getShort() & 0xFFFF];
+        read(Integer.BYTES * 2 + Short.BYTES, c.length).get(c);
+        this.context = new String(c, StandardCharsets.UTF_8);
+        ByteBuffer trailer = read(channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+        this.rootDigest = new byte[DIGEST_BYTES];
+        trailer.get(rootDigest);
+        this.fileCount = trailer.getLong();
+        this.rootOffset = trailer.getLong();
+    }
+
+    /**
+     * Opens a digest file
+     * 
+     * @param file
+     *            digest file written by a Syncer
+     * @return the opened digest
+     * @throws IOException
+     *             thrown if the file cannot be read or is not a digest file
+     */
+    public static TreeDigest open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new TreeDigest(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the digest of the whole tree
+     * 
+     * @return digest
+     */
+    public byte[] getRootDigest() {
+        return rootDigest.clone();
+    }
+
+    /**
+     * Returns the number of files in the tree
+     * 
+     * @return file count
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Lists the '/'-separated paths, relative to the roots, of the entries
+     * that differ between this tree and another: files that changed or exist
+     * on one side only, and directories that exist on one side only or changed
+     * type. Only directories whose digests differ are read.
+     * 
+     * @param other
+     *            digest to compare against
+     * @return differing paths
+     * @throws IOException
+     *             thrown if a digest file cannot be read
+     */
+    public List<String> compare(TreeDigest other) throws IOException {
+        List<String> differences = new ArrayList<>();
+        if (!matches(rootDigest, other.rootDigest)) {
+            compare(root(), other.root(), "", differences);
+        }
+        return differences;
+    }
+
+    /**
+     * Closes the digest file
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the text the digest was written with, which identifies the
+     * trees and settings it applies to
+     */
+    String getContext() {
+        return context;
+    }
+
+    /**
+     * Returns true if the whole tree matches another's
+     */
+    boolean matches(TreeDigest other) {
+        return matches(rootDigest, other.rootDigest);
+    }
+
+    /**
+     * Reads the record of the root directory
+     */
+    Node root() throws IOException {
+        return node(rootOffset);
+    }
+
+    /**
+     * Writes the digest of a scanned tree, whose root must be a directory
+     * 
+     * @param index
+     *            scanned tree
+     * @param context
+     *            text identifying the trees and settings, checked by the
+     *            Syncer before it trusts an earlier digest
+     * @param file
+     *            file to write
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    static void write(PathIndex index, String context, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()),
+                1 << 16))) {
+            byte[] c = context.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(c.length);
+            out.write(c);
+            Writer w = new Writer(out, Integer.BYTES * 2 + Short.BYTES + c.length);
+            Entry root = w.directory(index, index.root());
+            out.write(root.digest);
+            out.writeLong(root.files);
+            out.writeLong(root.offset);
+        }
+    }
+
+    // walks two directory records side by side, in name order
+    private void compare(Node a, Node b, String prefix, List<String> differences) throws IOException {
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            int cmp = i == a.size() ? 1 : j == b.size() ? -1 : a.names[i].compareTo(b.names[j]);
+            if (cmp < 0) {
+                differences.add(prefix + a.names[i++]);
+            } else if (cmp > 0) {
+                differences.add(prefix + b.names[j++]);
+            } else {
+                if (!a.matches(i, b, j)) {
+                    if (a.kinds[i] == DIRECTORY && b.kinds[j] == DIRECTORY) {
+                        compare(a.child(i), b.child(j), prefix + a.names[i] + "/", differences);
+                    } else {
+                        differences.add(prefix + a.names[i]);
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private Node node(long offset) throws IOException {
+        int length = read(offset, Integer.BYTES).getInt();
+        ByteBuffer b = read(offset + Integer.BYTES, length);
+        int n = b.getInt();
+        Node node = new Node(n);
+        for (int i = 0; i < n; i++) {
+            byte[] name = new byte[b.getShort() & 0xFFFF];
+            b.get(name);
+            node.names[i] = new String(name, StandardCharsets.UTF_8);
+            node.kinds[i] = b.get();
+            node.digests[i] = new byte[DIGEST_BYTES];
+            b.get(node.digests[i]);
+            node.files[i] = b.getLong();
+            node.offsets[i] = b.getLong();
+        }
+        return node;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            if (channel.read(b, position + b.position()) < 0) {
+                throw new EOFException("Truncated digest file " + file);
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private static boolean matches(byte[] a, byte[] b) {
+        return !Arrays.equals(a, VOLATILE) && Arrays.equals(a, b);
+    }
+
+    /**
+     * The children of one directory, sorted by name
+     */
+    final class Node {
+
+        private final String[] names;
+
+        private final byte[] kinds;
+
+        private final byte[][] digests;
+
+        private final long[] files;
+
+        private final long[] offsets;
+
+        private Node(int n) {
+            names = new String[n];
+            kinds = new byte[n];
+            digests = new byte[n][];
+            files = new long[n];
+            offsets = new long[n];
+        }
+
+        /**
+         * Returns the number of children
+         */
+        int size() {
+            return names.length;
+        }
+
+        /**
+         * Returns the position of the named child, or -1 if there is none
+         */
+        int find(String name) {
+            int i = Arrays.binarySearch(names, name);
+            return i < 0 ? -1 : i;
+        }
+
+        /**
+         * Returns the number of files at or below a child
+         */
+        long files(int i) {
+            return files[i];
+        }
+
+        /**
+         * Returns true if a child is the same, with the same contents, as a
+         * child of another directory
+         */
+        boolean matches(int i, Node other, int j) {
+            return kinds[i] == other.kinds[j] && TreeDigest.matches(digests[i], other.digests[j]);
+        }
+
+        /**
+         * Reads the record of a child, or returns null if it is not a
+         * directory
+         */
+        Node child(int i) throws IOException {
+            return kinds[i] == DIRECTORY ? node(offsets[i]) : null;
+        }
+    }
+
+    /**
+     * The digest, file count and record position of a written entry
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        final String name;
+
+        final byte kind;
+
+        final byte[] digest;
+
+        final long files;
+
+        final long offset;
+
+        Entry(String name, byte kind, byte[] digest, long files, long offset) {
+            this.name = name;
+            this.kind = kind;
+            this.digest = digest;
+            this.files = files;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+
+    /**
+     * Writes directory records children first, so each record can point at
+     * its children's records
+     */
+    private static final class Writer {
+
+        private final DataOutputStream out;
+
+        private final MessageDigest sha;
+
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+
+        private long position;
+
+        Writer(DataOutputStream out, long position) throws IOException {
+            this.out = out;
+            this.position = position;
+            try {
+                this.sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 is not available", e);
+            }
+        }
+
+        // writes the records below a directory, then its own
+        Entry directory(PathIndex index, int e) throws IOException {
+            List<Entry> children = new ArrayList<>();
+            for (int c = index.firstChild(e); c != PathIndex.NONE; c = index.nextSibling(c)) {
+                int flags = index.flags(c);
+                if ((flags & PathIndex.SYMLINK) != 0) {
+                    children.add(new Entry(index.name(c), FILE, VOLATILE, 1L, -1L));
+                } else if ((flags & PathIndex.DIRECTORY) != 0) {
+                    children.add(directory(index, c));
+                } else {
+                    children.add(new Entry(index.name(c), FILE, file(index.fileSize(c), index.modified(c),
+                            (flags & PathIndex.INCLUDED) != 0), 1L, -1L));
+                }
+            }
+            children.sort(null);
+
+            boolean stable = true;
+            long files = 0L;
+            record.reset();
+            recordOut.writeInt(children.size());
+            for (Entry c : children) {
+                byte[] name = c.name.getBytes(StandardCharsets.UTF_8);
+                recordOut.writeShort(name.length);
+                recordOut.write(name);
+                recordOut.writeByte(c.kind);
+                sha.update((byte) (name.length >>> 8));
+                sha.update((byte) name.length);
+                sha.update(name);
+                sha.update(c.kind);
+                sha.update(c.digest);
+                recordOut.write(c.digest);
+                recordOut.writeLong(c.files);
+                recordOut.writeLong(c.offset);
+                stable &= c.digest != VOLATILE;
+                files += c.files;
+            }
+            byte[] digest = sha.digest();
+
+            long offset = position;
+            out.writeInt(record.size());
+            record.writeTo(out);
+            position += Integer.BYTES + record.size();
+            String name = e == index.root() ? "" : index.name(e);
+            return new Entry(name, DIRECTORY, stable ? digest : VOLATILE, files, offset);
+        }
+
+        // digests the metadata of a file
+        private byte[] file(long size, long modified, boolean included) {
+            for (int i = 0; i < Long.BYTES; i++) {
+                sha.update((byte) (size >>> (i * 8)));
+            }
+            for (int i = 0; i < Long.BYTES; i++) {
+                sha.update((byte) (modified >>> (i * 8)));
+            }
+            sha.update((byte) (included ? 1 : 0));
+            return sha.digest();
+        }
+    }
+}
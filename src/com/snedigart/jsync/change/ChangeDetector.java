@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.change;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Interface for ChangeDetectors, which decide whether a source file differs
+ * from its existing target when smart copy is on
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public interface ChangeDetector {
+
+    /**
+     * Operation that is performed on a source file and its existing target to
+     * determine if the source needs to be copied
+     * 
+     * @param source
+     *            source file
+     * @param target
+     *            existing target file
+     * @return true if the source must be copied
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public abstract boolean hasChanged(File source, File target) throws IOException;
+
+    /**
+     * Like {@link #hasChanged(File, File)}, for callers that have already read
+     * the target's attributes (without following links), so the detector
+     * need not stat the target again. Ignores the attributes by default.
+     * 
+     * @param source
+     *            source file
+     * @param target
+     *            existing target file
+     * @param targetAttributes
+     *            attributes of the target
+     * @return true if the source must be copied
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public default boolean hasChanged(File source, File target, BasicFileAttributes targetAttributes)
+            throws IOException {
+        return hasChanged(source, target);
+    }
+
+    /**
+     * Called after the target has been brought up to date with the source,
+     * either by a copy or because no change was detected. Stateful detectors
+     * can record the source here. Does nothing by default.
+     * 
+     * @param source
+     *            source file
+     * @param target
+     *            target file
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public default void synced(File source, File target) throws IOException {
+        // no-op
+    }
+
+    /**
+     * Like {@link #synced(File, File)}, for an unchanged target whose
+     * attributes the caller has already read. Ignores the attributes by
+     * default.
+     * 
+     * @param source
+     *            source file
+     * @param target
+     *            target file
+     * @param targetAttributes
+     *            attributes of the target
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public default void synced(File source, File target, BasicFileAttributes targetAttributes) throws IOException {
+        synced(source, target);
+    }
+}
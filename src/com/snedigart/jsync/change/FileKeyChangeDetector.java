@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.change;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChangeDetector that remembers the file key (inode) and status change time
+ * (ctime) of every source it has seen synced. A source whose file key, ctime
+ * and size are unchanged since then, and whose target still has the recorded
+ * size and modified time, is considered unchanged without comparing
+ * timestamps across file systems. Because ctime cannot be set by user code,
+ * this also catches content rewritten with a restored modified time.
+ * Sources without a record are passed to the fallback detector. Records are
+ * kept per source and target pair, so one detector can be shared by several
+ * Syncers. The records can be saved and loaded so they survive between runs.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public class FileKeyChangeDetector implements ChangeDetector {
+
+    private static final int FORMAT_VERSION = 2;
+
+    protected final ChangeDetector fallback;
+
+    protected final Map<String, Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor. Uses a ModifiedTimeChangeDetector as the fallback.
+     */
+    public FileKeyChangeDetector() {
+        this(new ModifiedTimeChangeDetector());
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param fallback
+     *            detector used for sources that have no record yet
+     */
+    public FileKeyChangeDetector(ChangeDetector fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File)
+     */
+    @Override
+    public boolean hasChanged(File source, File target) throws IOException {
+        return hasChanged(source, target, readAttributes(target.toPath()));
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File, java.nio.file.attribute.BasicFileAttributes)
+     */
+    @Override
+    public boolean hasChanged(File source, File target, BasicFileAttributes targetAttributes) throws IOException {
+        Record r = records.get(key(source, target));
+        if (r == null) {
+            return fallback.hasChanged(source, target, targetAttributes);
+        }
+        return !r.equals(read(source.toPath(), targetAttributes));
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#synced(java.io.File,
+     *      java.io.File)
+     */
+    @Override
+    public void synced(File source, File target) throws IOException {
+        synced(source, target, readAttributes(target.toPath()));
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#synced(java.io.File,
+     *      java.io.File, java.nio.file.attribute.BasicFileAttributes)
+     */
+    @Override
+    public void synced(File source, File target, BasicFileAttributes targetAttributes) throws IOException {
+        records.put(key(source, target), read(source.toPath(), targetAttributes));
+    }
+
+    /**
+     * Writes the records to the given file
+     * 
+     * @param f
+     *            file to write
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public void save(File f) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> e : records.entrySet()) {
+                Record r = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(r.fileKey);
+                out.writeLong(r.ctime);
+                out.writeLong(r.size);
+                out.writeLong(r.targetSize);
+                out.writeLong(r.targetModified);
+            }
+        }
+    }
+
+    /**
+     * Replaces the records with those read from the given file. A missing file,
+     * or one written by an older version, leaves no records.
+     * 
+     * @param f
+     *            file to read
+     * @throws IOException
+     *             thrown on IO errors or if the file is not a valid record file
+     */
+    public void load(File f) throws IOException {
+        records.clear();
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            int version = in.readInt();
+            if (version < FORMAT_VERSION) {
+                // keyed by source only; every source is learned again
+                return;
+            }
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported record file " + f);
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String k = in.readUTF();
+                records.put(k, new Record(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated record file " + f, e);
+        }
+    }
+
+    private static String key(File source, File target) {
+        return source.getAbsolutePath() + '\0' + target.getAbsolutePath();
+    }
+
+    private static BasicFileAttributes readAttributes(Path p) throws IOException {
+        return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    // the current state of a source, with one stat, and of its target
+    private static Record read(Path s, BasicFileAttributes ta) throws IOException {
+        long targetModified = ta.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        Map<String, Object> unix = unixAttributes(s);
+        if (unix != null) {
+            Object fileKey = unix.get("fileKey");
+            return new Record(fileKey == null ? s.toString() : fileKey.toString(),
+                    ((FileTime) unix.get("ctime")).to(TimeUnit.NANOSECONDS), (Long) unix.get("size"), ta.size(),
+                    targetModified);
+        }
+        // no ctime here, so the modified time stands in for it
+        BasicFileAttributes sa = readAttributes(s);
+        Object fileKey = sa.fileKey();
+        return new Record(fileKey == null ? s.toString() : fileKey.toString(),
+                sa.lastModifiedTime().to(TimeUnit.NANOSECONDS), sa.size(), ta.size(), targetModified);
+    }
+
+    // all unix attributes of a file in one call, or null without a unix view
+    private static Map<String, Object> unixAttributes(Path p) throws IOException {
+        try {
+            return Files.readAttributes(p, "unix:*", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The recorded state of a synced source and its target
+     */
+    protected static final class Record {
+
+        final String fileKey;
+
+        final long ctime;
+
+        final long size;
+
+        final long targetSize;
+
+        final long targetModified;
+
+        Record(String fileKey, long ctime, long size, long targetSize, long targetModified) {
+            this.fileKey = fileKey;
+            this.ctime = ctime;
+            this.size = size;
+            this.targetSize = targetSize;
+            this.targetModified = targetModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Record)) {
+                return false;
+            }
+            Record r = (Record) o;
+            return fileKey.equals(r.fileKey) && ctime == r.ctime && size == r.size && targetSize == r.targetSize
+                    && targetModified == r.targetModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return fileKey.hashCode() * 31 + Long.hashCode(ctime);
+        }
+    }
+}
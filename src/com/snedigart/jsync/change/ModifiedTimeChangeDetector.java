@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.change;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * ChangeDetector that compares file size and last modified time, treating
+ * times within the given tolerance as equal
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public class ModifiedTimeChangeDetector implements ChangeDetector {
+
+    /**
+     * The default tolerance of 2 seconds, which covers the timestamp
+     * resolution of FAT file systems
+     */
+    public static final long DEFAULT_TOLERANCE_MILLIS = 2000L;
+
+    protected final long toleranceMillis;
+
+    /**
+     * Constructor. Uses the default tolerance of 2 seconds.
+     */
+    public ModifiedTimeChangeDetector() {
+        this(DEFAULT_TOLERANCE_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param toleranceMillis
+     *            the largest difference (exclusive) in ms between modified
+     *            times that is still considered unchanged
+     */
+    public ModifiedTimeChangeDetector(long toleranceMillis) {
+        this.toleranceMillis = toleranceMillis;
+    }
+
+    /**
+     * @return the tolerance in ms
+     */
+    public long getToleranceMillis() {
+        return toleranceMillis;
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File)
+     */
+    @Override
+    public boolean hasChanged(File source, File target) {
+        return hasChanged(source, target.length(), target.lastModified());
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File, java.nio.file.attribute.BasicFileAttributes)
+     */
+    @Override
+    public boolean hasChanged(File source, File target, BasicFileAttributes targetAttributes) {
+        return hasChanged(source, targetAttributes.size(), targetAttributes.lastModifiedTime().toMillis());
+    }
+
+    // compares the source with the target's size and modified time
+    private boolean hasChanged(File source, long targetSize, long targetModified) {
+        long sts = source.lastModified();
+        if (sts == 0L || source.length() != targetSize) {
+            return true;
+        }
+        long diff = Math.abs(sts - targetModified);
+        return toleranceMillis <= 0L ? diff != 0L : diff >= toleranceMillis;
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.change;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * ChangeDetector that compares file size and the last modified FileTime at
+ * the full precision the file system provides (nanoseconds on most Linux file
+ * systems)
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public class NanoTimeChangeDetector implements ChangeDetector {
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File)
+     */
+    @Override
+    public boolean hasChanged(File source, File target) throws IOException {
+        return hasChanged(source, target, readAttributes(target.toPath()));
+    }
+
+    /**
+     * @see com.snedigart.jsync.change.ChangeDetector#hasChanged(java.io.File,
+     *      java.io.File, java.nio.file.attribute.BasicFileAttributes)
+     */
+    @Override
+    public boolean hasChanged(File source, File target, BasicFileAttributes targetAttributes) throws IOException {
+        BasicFileAttributes s = readAttributes(source.toPath());
+        return s.size() != targetAttributes.size() || !s.lastModifiedTime().equals(targetAttributes.lastModifiedTime());
+    }
+
+    private static BasicFileAttributes readAttributes(Path p) throws IOException {
+        return Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+}
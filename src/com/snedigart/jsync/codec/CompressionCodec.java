@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface for CompressionCodecs, which compress files for a compressed
+ * mirror target. Implementations must be thread-safe, since files are
+ * compressed on several threads at once.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the suffix appended to the names of compressed target files,
+     * e.g. ".gz"
+     * 
+     * @return suffix
+     */
+    public abstract String getSuffix();
+
+    /**
+     * Wraps a stream so that everything written to it is compressed. Closing
+     * the returned stream must finish the compressed data and close the
+     * wrapped stream.
+     * 
+     * @param out
+     *            stream to write compressed data to
+     * @return compressing stream
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps a stream of compressed data so that reading from it gives the
+     * original data
+     * 
+     * @param in
+     *            stream of compressed data
+     * @return decompressing stream
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+}
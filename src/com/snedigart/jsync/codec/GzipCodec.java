@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CompressionCodec that writes standard gzip files with Deflater, so the
+ * mirror can be read back with any gzip tool. Example use: new GzipCodec(6)
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public class GzipCodec implements CompressionCodec {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    /**
+     * Constructor. Uses the default Deflater level.
+     */
+    public GzipCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param level
+     *            Deflater level, 1 (fastest) to 9 (smallest)
+     */
+    public GzipCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getSuffix() {
+        return ".gz";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
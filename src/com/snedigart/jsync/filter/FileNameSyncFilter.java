@@ -29,6 +29,8 @@ public class FileNameSyncFilter implements SyncFilter {
 
     protected final PathMatcher matcher;
 
+    protected final String glob;
+
     /**
      * Constructor
      * 
@@ -37,6 +39,7 @@ public class FileNameSyncFilter implements SyncFilter {
      */
     public FileNameSyncFilter(String glob) {
         this.matcher = FileSystems.getDefault().getPathMatcher(GLOB_SYNTAX + glob);
+        this.glob = glob;
     }
 
     /**
@@ -47,4 +50,12 @@ public class FileNameSyncFilter implements SyncFilter {
         return matcher.matches(f.toPath());
     }
 
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + glob + "]";
+    }
+
 }
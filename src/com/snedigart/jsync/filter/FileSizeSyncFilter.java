@@ -38,4 +38,12 @@ public class FileSizeSyncFilter implements SyncFilter {
         return (f.length() >= lowerSize && f.length() <= upperSize);
     }
 
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + lowerSize + "," + upperSize + "]";
+    }
+
 }
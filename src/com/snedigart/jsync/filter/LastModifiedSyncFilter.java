@@ -38,4 +38,12 @@ public class LastModifiedSyncFilter implements SyncFilter {
         return (f.lastModified() >= lowerBound && f.lastModified() <= upperBound);
     }
 
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getName() + "[" + lowerBound + "," + upperBound + "]";
+    }
+
 }
@@ -16,7 +16,9 @@ package com.snedigart.jsync.filter;
 import java.io.File;
 
 /**
- * Interface for SyncFilters
+ * Interface for SyncFilters. Filters should describe their settings in
+ * toString(), since a Syncer only reuses a digest file taken with filters
+ * that print the same.
  * 
  * @author Tyler Snedigar
  * @version 1.0
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Wire format shared by the SyncServer and the RemoteSyncer. Every message is
+ * a frame of [type:byte][channel:int][length:int][payload]. Metadata frames
+ * carry whole batches of entries so that a directory tree is exchanged in a
+ * handful of messages, and none of the client's requests wait for a reply
+ * until the final DONE, so everything is pipelined. DATA frames are tagged
+ * with the channel of the file they belong to, so several files can be in
+ * flight on one connection. Batch frames use the channel field for the number
+ * of entries in the batch.
+ * <p>
+ * The server opens every connection with a CHALLENGE holding a random nonce,
+ * and the client's HELLO answers it with an HMAC-SHA256 of the nonce under
+ * the shared secret, so the secret itself never crosses the wire.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+final class Protocol {
+
+    static final int MAGIC = 0x4A53594E;
+
+    static final int VERSION = 2;
+
+    // client -> server: magic, version, flags, answer to the challenge
+    static final byte HELLO = 1;
+
+    // client -> server: request for the listing of the whole target tree
+    static final byte LIST = 2;
+
+    // server -> client: batch of target entries
+    static final byte LISTING = 3;
+
+    // server -> client: listing is complete
+    static final byte LIST_END = 4;
+
+    // client -> server: batch of directories to create
+    static final byte MKDIRS = 5;
+
+    // client -> server: batch of paths to delete recursively
+    static final byte DELETES = 6;
+
+    // client -> server: opens a file on a channel
+    static final byte FILE_BEGIN = 7;
+
+    // client -> server: a chunk of file data for a channel
+    static final byte DATA = 8;
+
+    // client -> server: closes the file on a channel
+    static final byte FILE_END = 9;
+
+    // client -> server: no more requests, finish up and report
+    static final byte DONE = 10;
+
+    // server -> client: outcome of the session
+    static final byte RESULT = 11;
+
+    // server -> client: nonce the client must answer in its HELLO
+    static final byte CHALLENGE = 12;
+
+    // server -> client: the session was refused, with the reason
+    static final byte REJECTED = 13;
+
+    static final int NONCE_SIZE = 32;
+
+    static final int FLAG_COMPRESS = 1;
+
+    static final int FLAG_PRESERVE_MODIFIED_TIME = 2;
+
+    static final int FLAG_DELETE_EMPTY_DIRECTORIES = 4;
+
+    static final byte DATA_RAW = 0;
+
+    static final byte DATA_DEFLATED = 1;
+
+    // largest uncompressed DATA chunk
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    // entries per LISTING, MKDIRS or DELETES frame
+    static final int BATCH_SIZE = 4096;
+
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private Protocol() {
+        // constants and helpers only
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, int channel, byte[] b, int off, int len)
+            throws IOException {
+        out.writeByte(type);
+        out.writeInt(channel);
+        out.writeInt(len);
+        out.write(b, off, len);
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, int channel, ByteArrayOutputStream payload)
+            throws IOException {
+        out.writeByte(type);
+        out.writeInt(channel);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    /**
+     * Resolves a relative path sent by the peer against the root, refusing
+     * anything that would escape it
+     */
+    static Path resolve(Path root, String rel) throws IOException {
+        Path p = root.resolve(rel).normalize();
+        if (rel.isEmpty() || !p.startsWith(root) || p.equals(root)) {
+            throw new IOException("Illegal path " + rel);
+        }
+        return p;
+    }
+
+    /**
+     * Resolves a relative path like resolve(), and also refuses it if any
+     * directory between the root and the path is a symbolic link, which could
+     * lead out of the root. The path itself may be a link; callers must not
+     * follow it. Directories found to be real are added to the given set and
+     * not checked again.
+     */
+    static Path resolveNoLinks(Path root, String rel, Set<Path> checked) throws IOException {
+        Path p = resolve(root, rel);
+        for (Path d = p.getParent(); !d.equals(root) && !checked.contains(d); d = d.getParent()) {
+            if (Files.isSymbolicLink(d)) {
+                throw new IOException("Illegal path " + rel + ": " + root.relativize(d) + " is a symbolic link");
+            }
+        }
+        for (Path d = p.getParent(); !d.equals(root) && checked.add(d); d = d.getParent()) {
+            // remember the whole chain
+        }
+        return p;
+    }
+
+    // answers a challenge with an HMAC-SHA256 of the nonce under the secret
+    static byte[] answer(String secret, byte[] nonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // converts a path below the root into the '/'-separated wire form
+    static String relativize(Path root, Path p) {
+        String rel = root.relativize(p).toString();
+        return p.getFileSystem().getSeparator().equals("/") ? rel : rel.replace(p.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * Reads frames from a stream, reusing one payload buffer
+     */
+    static final class FrameReader {
+
+        private final DataInputStream in;
+
+        private byte[] payload = new byte[64 * 1024];
+
+        byte type;
+
+        int channel;
+
+        int length;
+
+        FrameReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads the next frame. The payload is valid until the next call.
+         */
+        void next() throws IOException {
+            type = in.readByte();
+            channel = in.readInt();
+            length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            in.readFully(payload, 0, length);
+        }
+
+        byte[] payload() {
+            return payload;
+        }
+
+        DataInputStream payloadStream() {
+            return new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+        }
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import com.snedigart.jsync.ProgressCallback;
+import com.snedigart.jsync.SyncOptions;
+import com.snedigart.jsync.SyncResults;
+import com.snedigart.jsync.change.ModifiedTimeChangeDetector;
+
+/**
+ * The RemoteSyncer is the client side of Syncer: it synchronizes a local
+ * source directory into the target directory of a SyncServer. The whole
+ * target listing arrives in a few batched frames while the source is being
+ * scanned, and all changes are then streamed without waiting on replies, so a
+ * sync over a high-latency link costs a couple of round trips in total.
+ * Options that only the local Syncer implements (sparse, append, verified,
+ * linked, compressed, logged or digested copies) are refused rather than
+ * ignored. Example use: new RemoteSyncer(src, new InetSocketAddress("nas",
+ * 7777), secret, opts).synchronize(null);
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class RemoteSyncer {
+
+    // files whose data is interleaved on the connection at any one time
+    private static final int STREAMS = 4;
+
+    private final File source;
+
+    private final InetSocketAddress server;
+
+    private final String secret;
+
+    private final SyncOptions options;
+
+    private final boolean compress;
+
+    private int totalSourceFiles = 0;
+
+    private int remainingSourceFiles = 0;
+
+    private int filesFiltered = 0;
+
+    private ProgressCallback callback;
+
+    /**
+     * Constructor. Creates a new RemoteSyncer that does not compress data. If
+     * options are null, a set of defaults will be used.
+     * 
+     * @param source
+     *            directory
+     * @param server
+     *            address of the SyncServer
+     * @param secret
+     *            secret shared with the SyncServer
+     * @param options
+     *            sync options
+     */
+    public RemoteSyncer(File source, InetSocketAddress server, String secret, SyncOptions options) {
+        this(source, server, secret, options, false);
+    }
+
+    /**
+     * Constructor. If options are null, a set of defaults will be used.
+     * 
+     * @param source
+     *            directory
+     * @param server
+     *            address of the SyncServer
+     * @param secret
+     *            secret shared with the SyncServer
+     * @param options
+     *            sync options
+     * @param compress
+     *            whether file data is sent Deflater-compressed
+     */
+    public RemoteSyncer(File source, InetSocketAddress server, String secret, SyncOptions options,
+            boolean compress) {
+        this.source = source;
+        this.server = server;
+        this.secret = secret;
+        this.options = options == null ? SyncOptions.DEFAULT_OPTIONS : options;
+        this.compress = compress;
+    }
+
+    /**
+     * This method performs the synchronization
+     * 
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return results of the sync
+     * @throws IOException
+     *             thrown on IO errors, including errors reported by the server,
+     *             and for options the RemoteSyncer does not support
+     */
+    public SyncResults synchronize(ProgressCallback cb) throws IOException {
+        if (cb == null) {
+            callback = (c, t, m) -> {
+                // no-op
+            };
+        } else {
+            callback = cb;
+        }
+        if (!source.isDirectory()) {
+            throw new IOException("Source is not a directory " + source);
+        }
+        checkOptions();
+
+        SyncResults.SyncResultsBuilder results = new SyncResults.SyncResultsBuilder();
+        totalSourceFiles = remainingSourceFiles = filesFiltered = 0;
+        callback.call(remainingSourceFiles, totalSourceFiles, "Loading...");
+
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(server);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            Protocol.FrameReader reader = new Protocol.FrameReader(in);
+
+            hello(reader, out);
+            out.writeByte(Protocol.LIST);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+
+            // the target listing streams in while the source is scanned
+            FutureTask<Map<String, Entry>> listing = new FutureTask<>(() -> readListing(reader));
+            Thread lister = new Thread(listing, "jsync-listing");
+            lister.setDaemon(true);
+            lister.start();
+
+            Path root = source.toPath().toAbsolutePath().normalize();
+            Map<String, Entry> sources = scanSource(root);
+            Map<String, Entry> targets = await(listing);
+            results.filesScanned(totalSourceFiles).scanTimeNanos(System.nanoTime() - start);
+
+            remainingSourceFiles = totalSourceFiles;
+            callback.call(remainingSourceFiles, totalSourceFiles, "Starting synchronize");
+            if (options.isDeleteUnmatchedTargets()) {
+                sendDeletes(out, sources, targets);
+            }
+            sendMkdirs(out, sources, targets);
+            sendFiles(out, root, sources, targets);
+
+            out.writeByte(Protocol.DONE);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+
+            reader.next();
+            if (reader.type != Protocol.RESULT) {
+                throw new IOException("Unexpected frame " + reader.type);
+            }
+            DataInputStream r = reader.payloadStream();
+            int copied = r.readInt();
+            int deleted = r.readInt();
+            int errorCount = r.readInt();
+            List<String> errors = new ArrayList<>();
+            for (int i = r.readInt(); i > 0; i--) {
+                errors.add(r.readUTF());
+            }
+            if (errorCount > 0) {
+                callback.call(-1, -1, errorCount + " error(s) on server: " + String.join("; ", errors));
+                throw new IOException(errorCount + " error(s) on server, first: " + errors.get(0));
+            }
+
+            results.totalTimeNanos(System.nanoTime() - start);
+            callback.call(remainingSourceFiles, totalSourceFiles, "Done!");
+            results.filesCopied(copied).filesDeleted(deleted).filesFiltered(filesFiltered);
+            return results.build();
+        }
+    }
+
+    // refuses the options that only the local Syncer implements
+    private void checkOptions() throws IOException {
+        List<String> unsupported = new ArrayList<>();
+        if (options.isSparseCopy()) {
+            unsupported.add("sparseCopy");
+        }
+        if (options.isAppendCopy()) {
+            unsupported.add("appendCopy");
+        }
+        if (options.isVerify()) {
+            unsupported.add("verify");
+        }
+        if (!options.getLinkReferences().isEmpty()) {
+            unsupported.add("linkReferences");
+        }
+        if (options.getChangeLog() != null) {
+            unsupported.add("changeLog");
+        }
+        if (options.getDigestFile() != null) {
+            unsupported.add("digestFile");
+        }
+        if (options.getCompressionCodec() != null) {
+            unsupported.add("compressionCodec");
+        }
+        if (!unsupported.isEmpty()) {
+            throw new IOException("Not supported by RemoteSyncer: " + String.join(", ", unsupported));
+        }
+    }
+
+    // answers the server's challenge
+    private void hello(Protocol.FrameReader reader, DataOutputStream out) throws IOException {
+        reader.next();
+        if (reader.type != Protocol.CHALLENGE || reader.length != Protocol.NONCE_SIZE) {
+            throw new IOException("Not a JSync server");
+        }
+        byte[] answer = Protocol.answer(secret, Arrays.copyOf(reader.payload(), reader.length));
+
+        int flags = 0;
+        if (compress) {
+            flags |= Protocol.FLAG_COMPRESS;
+        }
+        if (options.isPreserveModifiedTime()) {
+            flags |= Protocol.FLAG_PRESERVE_MODIFIED_TIME;
+        }
+        if (options.isDeleteEmptyTargetDirectories()) {
+            flags |= Protocol.FLAG_DELETE_EMPTY_DIRECTORIES;
+        }
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        DataOutputStream h = new DataOutputStream(hello);
+        h.writeInt(Protocol.MAGIC);
+        h.writeInt(Protocol.VERSION);
+        h.writeInt(flags);
+        h.writeShort(answer.length);
+        h.write(answer);
+        Protocol.writeFrame(out, Protocol.HELLO, 0, hello);
+    }
+
+    private static Map<String, Entry> readListing(Protocol.FrameReader reader) throws IOException {
+        Map<String, Entry> targets = new HashMap<>();
+        while (true) {
+            reader.next();
+            if (reader.type == Protocol.LIST_END) {
+                return targets;
+            } else if (reader.type == Protocol.REJECTED) {
+                throw new IOException("Refused by server: " + reader.payloadStream().readUTF());
+            } else if (reader.type != Protocol.LISTING) {
+                throw new IOException("Unexpected frame " + reader.type);
+            }
+            DataInputStream p = reader.payloadStream();
+            for (int i = 0; i < reader.channel; i++) {
+                String rel = p.readUTF();
+                targets.put(rel, new Entry(p.readBoolean(), p.readLong(), p.readLong()));
+            }
+        }
+    }
+
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing target", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to list target", e.getCause());
+        }
+    }
+
+    // walks the source in pre-order so parents come before their children
+    private Map<String, Entry> scanSource(Path root) throws IOException {
+        Map<String, Entry> sources = new LinkedHashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root)) {
+                    sources.put(Protocol.relativize(root, dir), new Entry(true, 0L, 0L));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Entry e = new Entry(false, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                e.included = options.isIncluded(file.toFile());
+                if (!e.included) {
+                    filesFiltered++;
+                }
+                // ignoring symlinks for now
+                e.included &= !attrs.isSymbolicLink();
+                sources.put(Protocol.relativize(root, file), e);
+                totalSourceFiles++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return sources;
+    }
+
+    // deletes the topmost target entries that have no source of the same type
+    private void sendDeletes(DataOutputStream out, Map<String, Entry> sources, Map<String, Entry> targets)
+            throws IOException {
+        Batch batch = new Batch(out, Protocol.DELETES);
+        Set<String> deleted = new HashSet<>();
+        for (Map.Entry<String, Entry> t : targets.entrySet()) {
+            String rel = t.getKey();
+            Entry s = sources.get(rel);
+            if (s != null && s.directory == t.getValue().directory) {
+                continue;
+            }
+            String parent = parent(rel);
+            if (parent.isEmpty() || (sources.containsKey(parent) && sources.get(parent).directory)) {
+                batch.add(rel);
+                deleted.add(rel);
+            }
+        }
+        batch.flush();
+        targets.keySet().removeIf(rel -> deleted.contains(rel) || isBelow(rel, deleted));
+    }
+
+    private void sendMkdirs(DataOutputStream out, Map<String, Entry> sources, Map<String, Entry> targets)
+            throws IOException {
+        Batch batch = new Batch(out, Protocol.MKDIRS);
+        for (Map.Entry<String, Entry> s : sources.entrySet()) {
+            if (s.getValue().directory) {
+                Entry t = targets.get(s.getKey());
+                if (t == null) {
+                    batch.add(s.getKey());
+                } else if (!t.directory) {
+                    throw new IOException("Source and target are not of the same type: " + s.getKey());
+                }
+            }
+        }
+        batch.flush();
+    }
+
+    // streams the changed files, interleaving chunks of up to STREAMS files
+    private void sendFiles(DataOutputStream out, Path root, Map<String, Entry> sources, Map<String, Entry> targets)
+            throws IOException {
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        for (Map.Entry<String, Entry> s : sources.entrySet()) {
+            Entry e = s.getValue();
+            if (e.directory) {
+                continue;
+            }
+            if (e.included && hasChanged(e, targets.get(s.getKey()))) {
+                pending.add(s.getKey());
+            } else {
+                callback.call(remainingSourceFiles--, totalSourceFiles, "");
+            }
+        }
+
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] raw = new byte[Protocol.CHUNK_SIZE];
+        byte[] frame = new byte[Protocol.CHUNK_SIZE + Protocol.CHUNK_SIZE / 8 + 64];
+        FileChannel[] streams = new FileChannel[STREAMS];
+        try {
+            int open = 0;
+            while (open > 0 || !pending.isEmpty()) {
+                for (int ch = 0; ch < STREAMS; ch++) {
+                    if (streams[ch] == null && !pending.isEmpty()) {
+                        String rel = pending.poll();
+                        callback.call(remainingSourceFiles--, totalSourceFiles, "Copying " + rel);
+                        streams[ch] = FileChannel.open(Protocol.resolve(root, rel), StandardOpenOption.READ);
+                        ByteArrayOutputStream begin = new ByteArrayOutputStream();
+                        DataOutputStream b = new DataOutputStream(begin);
+                        b.writeUTF(rel);
+                        b.writeLong(sources.get(rel).modified);
+                        Protocol.writeFrame(out, Protocol.FILE_BEGIN, ch, begin);
+                        open++;
+                    }
+                    FileChannel st = streams[ch];
+                    if (st == null) {
+                        continue;
+                    }
+                    int n = st.read(ByteBuffer.wrap(raw));
+                    if (n < 0) {
+                        st.close();
+                        streams[ch] = null;
+                        open--;
+                        Protocol.writeFrame(out, Protocol.FILE_END, ch, frame, 0, 0);
+                    } else if (n > 0) {
+                        writeData(out, ch, raw, n, frame, deflater);
+                    }
+                }
+            }
+        } finally {
+            for (FileChannel st : streams) {
+                if (st != null) {
+                    st.close();
+                }
+            }
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    // writes one DATA frame, compressed if that makes it smaller
+    private static void writeData(DataOutputStream out, int ch, byte[] raw, int n, byte[] frame, Deflater deflater)
+            throws IOException {
+        if (deflater != null) {
+            deflater.reset();
+            deflater.setInput(raw, 0, n);
+            deflater.finish();
+            int len = 1;
+            while (!deflater.finished() && len < frame.length) {
+                len += deflater.deflate(frame, len, frame.length - len);
+            }
+            if (deflater.finished() && len < n + 1) {
+                frame[0] = Protocol.DATA_DEFLATED;
+                Protocol.writeFrame(out, Protocol.DATA, ch, frame, 0, len);
+                return;
+            }
+        }
+        frame[0] = Protocol.DATA_RAW;
+        System.arraycopy(raw, 0, frame, 1, n);
+        Protocol.writeFrame(out, Protocol.DATA, ch, frame, 0, n + 1);
+    }
+
+    // smart copy on the metadata exchanged with the server
+    private boolean hasChanged(Entry s, Entry t) {
+        if (t == null || t.directory || !options.isSmartCopy()) {
+            return true;
+        }
+        if (s.size != t.size || s.modified == 0L) {
+            return true;
+        }
+        if (options.getChangeDetector() instanceof ModifiedTimeChangeDetector) {
+            long tolerance = ((ModifiedTimeChangeDetector) options.getChangeDetector()).getToleranceMillis();
+            long diff = Math.abs(TimeUnit.NANOSECONDS.toMillis(s.modified) - TimeUnit.NANOSECONDS.toMillis(t.modified));
+            return tolerance <= 0L ? diff != 0L : diff >= tolerance;
+        }
+        return s.modified != t.modified;
+    }
+
+    private static String parent(String rel) {
+        int i = rel.lastIndexOf('/');
+        return i < 0 ? "" : rel.substring(0, i);
+    }
+
+    private static boolean isBelow(String rel, Set<String> dirs) {
+        for (String p = parent(rel); !p.isEmpty(); p = parent(p)) {
+            if (dirs.contains(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Metadata of one entry on either side
+     */
+    private static final class Entry {
+
+        final boolean directory;
+
+        final long size;
+
+        final long modified;
+
+        boolean included = true;
+
+        Entry(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Collects paths into frames of up to BATCH_SIZE entries
+     */
+    private static final class Batch {
+
+        private final DataOutputStream out;
+
+        private final byte type;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+        private final DataOutputStream data = new DataOutputStream(buffer);
+
+        private int count = 0;
+
+        Batch(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        void add(String rel) throws IOException {
+            data.writeUTF(rel);
+            if (++count == Protocol.BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (count > 0) {
+                Protocol.writeFrame(out, type, count, buffer);
+                buffer.reset();
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.remote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The SyncServer runs next to a target directory and applies the changes sent
+ * to it by a RemoteSyncer. Each connection is served on its own thread, and
+ * only clients that prove they hold the shared secret are served. Paths that
+ * would lead out of the target directory, including through symbolic links
+ * in it, are refused. Example use: new SyncServer(new File("/srv/backup"),
+ * 7777, secret).start();
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class SyncServer implements Closeable {
+
+    // error messages returned to the client, beyond which only the count grows
+    private static final int MAX_REPORTED_ERRORS = 16;
+
+    private final Path root;
+
+    private final InetSocketAddress address;
+
+    private final String secret;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private ServerSocket serverSocket;
+
+    /**
+     * Constructor. Creates a server for the given target directory that will
+     * listen on the loopback interface only.
+     * 
+     * @param root
+     *            target directory
+     * @param port
+     *            port to listen on, or 0 for any free port
+     * @param secret
+     *            secret shared with the clients
+     */
+    public SyncServer(File root, int port, String secret) {
+        this(root, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), secret);
+    }
+
+    /**
+     * Constructor. Anyone who can reach the address and knows the secret can
+     * change everything under the target directory, so only bind other
+     * interfaces than loopback on a network you trust.
+     * 
+     * @param root
+     *            target directory
+     * @param address
+     *            address to listen on
+     * @param secret
+     *            secret shared with the clients
+     */
+    public SyncServer(File root, InetSocketAddress address, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A shared secret is required");
+        }
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.address = address;
+        this.secret = secret;
+    }
+
+    /**
+     * Binds the server socket and starts accepting connections in the
+     * background
+     * 
+     * @throws IOException
+     *             thrown if the socket cannot be bound
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            throw new IOException("Server already started");
+        }
+        Files.createDirectories(root);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        Thread acceptor = new Thread(this::acceptLoop, "jsync-server-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port the server listens on, which is useful when it was
+     * started on port 0
+     * 
+     * @return port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections. Sessions in progress run to completion.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread session = new Thread(() -> serve(socket), "jsync-session-" + socket.getRemoteSocketAddress());
+                session.setDaemon(true);
+                session.start();
+            } catch (SocketException e) {
+                // closed
+                return;
+            } catch (IOException e) {
+                // a failed accept does not stop the server
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            new Session(in, out).run();
+        } catch (IOException e) {
+            // the client sees the dropped connection
+        }
+    }
+
+    /**
+     * Starts a server from the command line. Usage: SyncServer directory port
+     * [bind address]. The shared secret is read from the JSYNC_SECRET
+     * environment variable, so it does not show up in the process list. The
+     * server listens on loopback unless a bind address is given.
+     * 
+     * @param args
+     *            directory, port and optional bind address
+     * @throws Exception
+     *             thrown if the server cannot start
+     */
+    public static void main(String[] args) throws Exception {
+        String secret = System.getenv("JSYNC_SECRET");
+        if (args.length < 2 || args.length > 3 || secret == null || secret.isEmpty()) {
+            System.err.println("Usage: JSYNC_SECRET=<secret> SyncServer <target directory> <port> [bind address]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[1]);
+        InetSocketAddress address = args.length == 3 ? new InetSocketAddress(args[2], port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        SyncServer server = new SyncServer(new File(args[0]), address, secret);
+        server.start();
+        System.out.println("Serving " + server.root + " on " + server.serverSocket.getLocalSocketAddress());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * One client connection
+     */
+    private final class Session {
+
+        private final DataInputStream in;
+
+        private final DataOutputStream out;
+
+        private final Protocol.FrameReader reader;
+
+        private final Map<Integer, OpenFile> files = new HashMap<>();
+
+        // directories already known not to be symbolic links
+        private final Set<Path> checked = new HashSet<>();
+
+        private final Inflater inflater = new Inflater();
+
+        private final byte[] inflated = new byte[Protocol.CHUNK_SIZE];
+
+        private int flags = 0;
+
+        private int filesWritten = 0;
+
+        private int filesDeleted = 0;
+
+        private int errorCount = 0;
+
+        private final List<String> errors = new ArrayList<>();
+
+        Session(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+            this.reader = new Protocol.FrameReader(in);
+        }
+
+        void run() throws IOException {
+            try {
+                hello();
+                while (true) {
+                    try {
+                        reader.next();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    switch (reader.type) {
+                    case Protocol.LIST:
+                        list();
+                        break;
+                    case Protocol.MKDIRS:
+                        mkdirs();
+                        break;
+                    case Protocol.DELETES:
+                        deletes();
+                        break;
+                    case Protocol.FILE_BEGIN:
+                        beginFile();
+                        break;
+                    case Protocol.DATA:
+                        data();
+                        break;
+                    case Protocol.FILE_END:
+                        endFile();
+                        break;
+                    case Protocol.DONE:
+                        done();
+                        break;
+                    default:
+                        throw new IOException("Unexpected frame " + reader.type);
+                    }
+                }
+            } finally {
+                inflater.end();
+                for (OpenFile f : files.values()) {
+                    f.close();
+                }
+            }
+        }
+
+        private void hello() throws IOException {
+            byte[] nonce = new byte[Protocol.NONCE_SIZE];
+            random.nextBytes(nonce);
+            Protocol.writeFrame(out, Protocol.CHALLENGE, 0, nonce, 0, nonce.length);
+            out.flush();
+
+            reader.next();
+            DataInputStream p = reader.payloadStream();
+            if (reader.type != Protocol.HELLO || p.readInt() != Protocol.MAGIC) {
+                throw new IOException("Not a JSync client");
+            }
+            if (p.readInt() != Protocol.VERSION) {
+                reject("Unsupported protocol version");
+            }
+            flags = p.readInt();
+            byte[] answer = new byte[p.readUnsignedShort()];
+            p.readFully(answer);
+            if (!MessageDigest.isEqual(answer, Protocol.answer(secret, nonce))) {
+                reject("Authentication failed");
+            }
+        }
+
+        // tells the client why the session ends, then ends it
+        private void reject(String reason) throws IOException {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new DataOutputStream(b).writeUTF(reason);
+            Protocol.writeFrame(out, Protocol.REJECTED, 0, b);
+            out.flush();
+            throw new IOException(reason);
+        }
+
+        // streams the whole target tree back in batches
+        private void list() throws IOException {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+            DataOutputStream b = new DataOutputStream(batch);
+            int[] count = { 0 };
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(root)) {
+                        add(dir, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    add(file, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    error(exc);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void add(Path p, BasicFileAttributes attrs) throws IOException {
+                    b.writeUTF(Protocol.relativize(root, p));
+                    b.writeBoolean(attrs.isDirectory());
+                    b.writeLong(attrs.size());
+                    b.writeLong(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+                    if (++count[0] == Protocol.BATCH_SIZE) {
+                        flushBatch();
+                    }
+                }
+
+                private void flushBatch() throws IOException {
+                    Protocol.writeFrame(out, Protocol.LISTING, count[0], batch);
+                    batch.reset();
+                    count[0] = 0;
+                }
+            });
+            if (count[0] > 0) {
+                Protocol.writeFrame(out, Protocol.LISTING, count[0], batch);
+            }
+            out.writeByte(Protocol.LIST_END);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.flush();
+        }
+
+        private void mkdirs() throws IOException {
+            DataInputStream p = reader.payloadStream();
+            for (int i = 0; i < reader.channel; i++) {
+                String rel = p.readUTF();
+                try {
+                    Files.createDirectories(Protocol.resolveNoLinks(root, rel, checked));
+                } catch (IOException e) {
+                    error(e);
+                }
+            }
+        }
+
+        private void deletes() throws IOException {
+            DataInputStream p = reader.payloadStream();
+            checked.clear();
+            for (int i = 0; i < reader.channel; i++) {
+                String rel = p.readUTF();
+                try {
+                    delete(Protocol.resolveNoLinks(root, rel, checked));
+                } catch (IOException e) {
+                    error(e);
+                }
+            }
+        }
+
+        private void beginFile() throws IOException {
+            DataInputStream p = reader.payloadStream();
+            String rel = p.readUTF();
+            long modified = p.readLong();
+            OpenFile f = new OpenFile(modified);
+            files.put(reader.channel, f);
+            try {
+                Path path = Protocol.resolveNoLinks(root, rel, checked);
+                Path parent = path.getParent();
+                if (parent != null && !Files.isDirectory(parent)) {
+                    Files.createDirectories(parent);
+                }
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    throw new IOException("Source and target are not of the same type: " + rel);
+                }
+                // a link is replaced, never written through
+                if (Files.isSymbolicLink(path)) {
+                    Files.delete(path);
+                }
+                f.path = path;
+                f.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                f.close();
+                error(e);
+            }
+        }
+
+        private void data() throws IOException {
+            OpenFile f = files.get(reader.channel);
+            if (f == null) {
+                throw new IOException("Data for unknown channel " + reader.channel);
+            }
+            if (f.channel == null || reader.length == 0) {
+                return;
+            }
+            byte[] payload = reader.payload();
+            ByteBuffer buf;
+            if (payload[0] == Protocol.DATA_DEFLATED) {
+                inflater.reset();
+                inflater.setInput(payload, 1, reader.length - 1);
+                int n = 0;
+                try {
+                    while (!inflater.finished() && n < inflated.length) {
+                        int r = inflater.inflate(inflated, n, inflated.length - n);
+                        if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += r;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed data", e);
+                }
+                buf = ByteBuffer.wrap(inflated, 0, n);
+            } else {
+                buf = ByteBuffer.wrap(payload, 1, reader.length - 1);
+            }
+            try {
+                while (buf.hasRemaining()) {
+                    f.channel.write(buf);
+                }
+            } catch (IOException e) {
+                f.close();
+                error(e);
+            }
+        }
+
+        private void endFile() throws IOException {
+            OpenFile f = files.remove(reader.channel);
+            if (f == null) {
+                throw new IOException("End of unknown channel " + reader.channel);
+            }
+            if (f.channel == null) {
+                return;
+            }
+            try {
+                f.channel.close();
+                if ((flags & Protocol.FLAG_PRESERVE_MODIFIED_TIME) != 0) {
+                    Files.getFileAttributeView(f.path, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                            .setTimes(FileTime.from(f.modified, TimeUnit.NANOSECONDS), null, null);
+                }
+                filesWritten++;
+            } catch (IOException e) {
+                error(e);
+            }
+        }
+
+        private void done() throws IOException {
+            if ((flags & Protocol.FLAG_DELETE_EMPTY_DIRECTORIES) != 0) {
+                try {
+                    deleteEmpties();
+                } catch (IOException e) {
+                    error(e);
+                }
+            }
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            DataOutputStream r = new DataOutputStream(result);
+            r.writeInt(filesWritten);
+            r.writeInt(filesDeleted);
+            r.writeInt(errorCount);
+            r.writeInt(errors.size());
+            for (String e : errors) {
+                r.writeUTF(e);
+            }
+            Protocol.writeFrame(out, Protocol.RESULT, 0, result);
+            out.flush();
+        }
+
+        private void error(IOException e) {
+            if (errorCount++ < MAX_REPORTED_ERRORS) {
+                errors.add(String.valueOf(e.getMessage()));
+            }
+        }
+
+        // deletes a file or directory, recursively
+        private void delete(Path path) throws IOException {
+            if (Files.notExists(path, LinkOption.NOFOLLOW_LINKS)) {
+                return;
+            }
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    filesDeleted++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private void deleteEmpties() throws IOException {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (!dir.equals(root) && dir.toFile().list().length == 0) {
+                        Files.delete(dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * A file being received on a channel. The channel is null once writing it
+     * has failed, so its remaining data is dropped.
+     */
+    private static final class OpenFile {
+
+        final long modified;
+
+        Path path;
+
+        FileChannel channel;
+
+        OpenFile(long modified) {
+            this.modified = modified;
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // already failing
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,720 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.snedigart.jsync.ProgressCallback;
+import com.snedigart.jsync.SyncOptions;
+import com.snedigart.jsync.SyncResults;
+
+/**
+ * A content-addressed, deduplicating sync target. Files are split into
+ * content-defined chunks, each distinct chunk (by SHA-256) is stored once in
+ * append-only pack files, and a manifest records the chunk list of every
+ * file. Near-identical files therefore only add their differing chunks. Files
+ * are chunked and hashed in parallel, each worker reusing its own buffer and
+ * digest; only the append of new chunks is serialized. Chunks no longer used
+ * by any file stay in the packs. The manifest also lists the directories, so
+ * empty ones are restored too. Example use: try (ChunkStore store = new
+ * ChunkStore(new File("/backup/store"))) { store.synchronize(src, opts, null);
+ * }
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class ChunkStore implements Closeable {
+
+    private static final int MANIFEST_MAGIC = 0x4A53434D;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    // digest, pack, offset and length of one chunk log record
+    private static final int RECORD_LENGTH = DIGEST_LENGTH + Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    // chunk log records held back until their pack data is on disk
+    private static final int MAX_PENDING_RECORDS = 4096;
+
+    // a pack is closed and a new one started beyond this size
+    private static final long MAX_PACK_SIZE = 1024L * 1024 * 1024;
+
+    private final Path dir;
+
+    private final ContentDefinedChunker chunker;
+
+    private final int threads;
+
+    private final Map<ChunkId, Location> chunks = new ConcurrentHashMap<>();
+
+    private final Map<String, FileRecord> files = new HashMap<>();
+
+    private final Set<String> directories = new TreeSet<>();
+
+    private final Object packLock = new Object();
+
+    private FileChannel chunkLog;
+
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream(64 * 1024);
+
+    private final DataOutputStream pending = new DataOutputStream(pendingRecords);
+
+    private int pendingCount = 0;
+
+    private FileChannel pack;
+
+    private int packId = 0;
+
+    private long storedBytes = 0L;
+
+    /**
+     * Constructor. Opens or creates a store in the given directory, using the
+     * default chunk sizes and one worker per processor.
+     * 
+     * @param dir
+     *            store directory
+     * @throws IOException
+     *             thrown if the store cannot be opened
+     */
+    public ChunkStore(File dir) throws IOException {
+        this(dir, new ContentDefinedChunker(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor. Opens or creates a store in the given directory. The
+     * chunker must be the same every time a store is opened, or unchanged data
+     * will not deduplicate against earlier syncs.
+     * 
+     * @param dir
+     *            store directory
+     * @param chunker
+     *            chunker
+     * @param threads
+     *            number of files chunked and hashed at the same time
+     * @throws IOException
+     *             thrown if the store cannot be opened
+     */
+    public ChunkStore(File dir, ContentDefinedChunker chunker, int threads) throws IOException {
+        this.dir = dir.toPath();
+        this.chunker = chunker;
+        this.threads = Math.max(1, threads);
+        Files.createDirectories(this.dir.resolve("packs"));
+        loadChunks();
+        loadManifest();
+        chunkLog = FileChannel.open(chunkLogPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Stores the source directory, replacing the previous contents of the
+     * store. Filters, smart copy (size and modified time against the
+     * manifest), deleteUnmatchedTargets and preserveModifiedTime are taken
+     * from the options; the copy tuning options do not apply. Like the
+     * Syncer, deleteUnmatchedTargets only drops stored files whose source is
+     * gone, not those that are now filtered out.
+     * 
+     * @param source
+     *            directory
+     * @param options
+     *            sync options, or null for defaults
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @return results of the sync
+     * @throws IOException
+     *             thrown on IO errors
+     */
+    public SyncResults synchronize(File source, SyncOptions options, ProgressCallback cb) throws IOException {
+        SyncOptions opts = options == null ? SyncOptions.DEFAULT_OPTIONS : options;
+        ProgressCallback callback = cb == null ? (c, t, m) -> {
+            // no-op
+        } : cb;
+        callback.call(0, 0, "Loading...");
+
+        long start = System.nanoTime();
+        Path root = source.toPath();
+        Map<String, BasicFileAttributes> sources = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        Set<String> dirs = new HashSet<>();
+        int[] filtered = { 0 };
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (!d.equals(root)) {
+                    dirs.add(relativize(root, d));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String rel = relativize(root, file);
+                names.add(rel);
+                // ignoring symlinks for now
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (opts.isIncluded(file.toFile())) {
+                    sources.put(rel, attrs);
+                } else {
+                    filtered[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int total = sources.size() + filtered[0];
+        SyncResults.SyncResultsBuilder results = new SyncResults.SyncResultsBuilder();
+        results.filesScanned(total).filesFiltered(filtered[0]).scanTimeNanos(System.nanoTime() - start);
+        callback.call(total, total, "Starting synchronize");
+
+        int before = files.size();
+        if (opts.isDeleteUnmatchedTargets()) {
+            files.keySet().retainAll(names);
+            directories.retainAll(dirs);
+        }
+        // a path that changed between file and directory takes its new type
+        files.keySet().removeAll(dirs);
+        directories.removeAll(names);
+        directories.addAll(dirs);
+        int deleted = before - files.size();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(threads * 4);
+        Map<String, Future<FileRecord>> pending = new HashMap<>();
+        int remaining = total;
+        try {
+            for (Map.Entry<String, BasicFileAttributes> e : sources.entrySet()) {
+                BasicFileAttributes attrs = e.getValue();
+                long modified = attrs.lastModifiedTime().to(TimeUnit.MILLISECONDS);
+                FileRecord old = files.get(e.getKey());
+                if (opts.isSmartCopy() && old != null && old.size == attrs.size() && old.modified == modified
+                        && modified != 0L) {
+                    callback.call(remaining--, total, "");
+                    continue;
+                }
+                callback.call(remaining--, total, "Storing " + e.getKey());
+                Path file = root.resolve(e.getKey());
+                inFlight.acquire();
+                pending.put(e.getKey(), pool.submit(() -> {
+                    try {
+                        return storeFile(file, modified);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<FileRecord>> e : pending.entrySet()) {
+                files.put(e.getKey(), e.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while storing");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Failed to store file", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            synchronized (packLock) {
+                commitChunks();
+            }
+            saveManifest();
+        }
+
+        results.filesCopied(pending.size()).filesDeleted(deleted).totalTimeNanos(System.nanoTime() - start);
+        callback.call(remaining, total, "Done!");
+        return results.build();
+    }
+
+    /**
+     * Writes the stored directories and files out as a plain directory tree
+     * 
+     * @param target
+     *            directory to restore into
+     * @param cb
+     *            callback that gets called periodically with progress info
+     * @throws IOException
+     *             thrown on IO errors, or if a chunk is missing
+     */
+    public void restore(File target, ProgressCallback cb) throws IOException {
+        ProgressCallback callback = cb == null ? (c, t, m) -> {
+            // no-op
+        } : cb;
+        Map<Integer, FileChannel> packs = new HashMap<>();
+        int total = files.size();
+        int remaining = total;
+        for (String d : directories) {
+            Files.createDirectories(target.toPath().resolve(d));
+        }
+        try {
+            for (Map.Entry<String, FileRecord> e : files.entrySet()) {
+                callback.call(remaining--, total, "Restoring " + e.getKey());
+                Path out = target.toPath().resolve(e.getKey());
+                Files.createDirectories(out.getParent());
+                FileRecord r = e.getValue();
+                try (FileChannel o = FileChannel.open(out, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long position = 0L;
+                    for (int i = 0; i < r.chunkCount(); i++) {
+                        Location l = chunks.get(r.chunk(i));
+                        if (l == null) {
+                            throw new IOException("Missing chunk for " + e.getKey());
+                        }
+                        FileChannel p = packs.get(l.pack);
+                        if (p == null) {
+                            p = FileChannel.open(packPath(l.pack), StandardOpenOption.READ);
+                            packs.put(l.pack, p);
+                        }
+                        long done = 0L;
+                        while (done < l.length) {
+                            done += o.transferFrom(p.position(l.offset + done), position + done, l.length - done);
+                        }
+                        position += l.length;
+                    }
+                }
+                Files.setLastModifiedTime(out, FileTime.fromMillis(r.modified));
+            }
+        } finally {
+            for (FileChannel p : packs.values()) {
+                p.close();
+            }
+        }
+        callback.call(remaining, total, "Done!");
+    }
+
+    /**
+     * @return the number of files in the store
+     */
+    public int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the number of distinct chunks in the store
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @return the total size of the files in the store
+     */
+    public long getLogicalBytes() {
+        long total = 0L;
+        for (FileRecord r : files.values()) {
+            total += r.size;
+        }
+        return total;
+    }
+
+    /**
+     * @return the bytes of chunk data held in the packs
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (packLock) {
+            commitChunks();
+            chunkLog.close();
+            if (pack != null) {
+                pack.close();
+                pack = null;
+            }
+        }
+    }
+
+    /**
+     * Chunks and hashes one file, appending chunks the store does not have
+     * yet. Runs on a worker thread.
+     */
+    private FileRecord storeFile(Path file, long modified) throws IOException {
+        Worker w = WORKER.get();
+        ByteBuffer buf = w.buffer(chunker.getMaxSize() * 2);
+        ByteArray digests = new ByteArray();
+        long size = 0L;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf.clear();
+            boolean eof = false;
+            int off = 0;
+            while (true) {
+                int avail = buf.position() - off;
+                int len = chunker.cut(buf, off, avail, eof);
+                if (len < 0 || (len == 0 && !eof)) {
+                    // compact and read more
+                    buf.limit(buf.position()).position(off);
+                    buf.compact();
+                    off = 0;
+                    while (!eof && buf.hasRemaining()) {
+                        if (in.read(buf) < 0) {
+                            eof = true;
+                        }
+                    }
+                    continue;
+                }
+                if (len == 0) {
+                    break;
+                }
+                ByteBuffer chunk = buf.duplicate();
+                chunk.limit(off + len).position(off);
+                w.digest.update(chunk);
+                byte[] d = w.digest.digest();
+                chunk.position(off);
+                store(new ChunkId(d), chunk);
+                digests.append(d);
+                size += len;
+                off += len;
+            }
+        }
+        return new FileRecord(size, modified, digests.toArray());
+    }
+
+    // appends a chunk to the current pack unless it is already stored
+    private void store(ChunkId id, ByteBuffer data) throws IOException {
+        if (chunks.containsKey(id)) {
+            return;
+        }
+        synchronized (packLock) {
+            if (chunks.containsKey(id)) {
+                return;
+            }
+            if (pack == null || pack.size() >= MAX_PACK_SIZE) {
+                openNextPack();
+            }
+            long offset = pack.size();
+            int length = data.remaining();
+            while (data.hasRemaining()) {
+                pack.write(data, pack.size());
+            }
+            pending.write(id.digest);
+            pending.writeInt(packId);
+            pending.writeLong(offset);
+            pending.writeInt(length);
+            chunks.put(id, new Location(packId, offset, length));
+            storedBytes += length;
+            if (++pendingCount >= MAX_PENDING_RECORDS) {
+                commitChunks();
+            }
+        }
+    }
+
+    /**
+     * Makes the pack data durable, then appends the held-back chunk log
+     * records that point at it and makes them durable too, so after a crash
+     * the log never refers to data the pack does not hold. Called with the
+     * pack lock held.
+     */
+    private void commitChunks() throws IOException {
+        if (pack != null) {
+            pack.force(false);
+        }
+        if (pendingCount == 0) {
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(pendingRecords.toByteArray());
+        while (b.hasRemaining()) {
+            chunkLog.write(b);
+        }
+        chunkLog.force(false);
+        pendingRecords.reset();
+        pendingCount = 0;
+    }
+
+    private void openNextPack() throws IOException {
+        if (pack != null) {
+            commitChunks();
+            pack.close();
+            packId++;
+        }
+        pack = FileChannel.open(packPath(packId), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+    }
+
+    private Path packPath(int id) {
+        return dir.resolve("packs").resolve(String.format("pack-%05d.dat", id));
+    }
+
+    private Path chunkLogPath() {
+        return dir.resolve("chunks.idx");
+    }
+
+    private Path manifestPath() {
+        return dir.resolve("files.idx");
+    }
+
+    /**
+     * Reads the chunk log. A torn last record from a crash is cut off, so the
+     * records appended after it stay aligned, and records pointing past the
+     * end of their pack (written by versions that did not sync the pack
+     * first) are dropped, so those chunks are stored again when seen.
+     */
+    private void loadChunks() throws IOException {
+        if (!Files.exists(chunkLogPath())) {
+            return;
+        }
+        long records = 0L;
+        Map<Integer, Long> packSizes = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chunkLogPath())))) {
+            byte[] d = new byte[DIGEST_LENGTH];
+            while (true) {
+                in.readFully(d);
+                Location l = new Location(in.readInt(), in.readLong(), in.readInt());
+                records++;
+                Long packSize = packSizes.get(l.pack);
+                if (packSize == null) {
+                    Path p = packPath(l.pack);
+                    packSize = Files.exists(p) ? Files.size(p) : 0L;
+                    packSizes.put(l.pack, packSize);
+                }
+                if (l.offset + l.length > packSize) {
+                    continue;
+                }
+                if (chunks.put(new ChunkId(d.clone()), l) == null) {
+                    storedBytes += l.length;
+                }
+                packId = Math.max(packId, l.pack);
+            }
+        } catch (EOFException e) {
+            // end of log
+        }
+        if (Files.size(chunkLogPath()) != records * RECORD_LENGTH) {
+            try (FileChannel log = FileChannel.open(chunkLogPath(), StandardOpenOption.WRITE)) {
+                log.truncate(records * RECORD_LENGTH);
+                log.force(false);
+            }
+        }
+        // new chunks go after everything already in the newest pack
+        pack = FileChannel.open(packPath(packId), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+    }
+
+    private void loadManifest() throws IOException {
+        if (!Files.exists(manifestPath())) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath())))) {
+            int version = in.readInt() == MANIFEST_MAGIC ? in.readInt() : -1;
+            if (version != 1 && version != FORMAT_VERSION) {
+                throw new IOException("Unsupported manifest " + manifestPath());
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                String rel = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] digests = new byte[in.readInt() * DIGEST_LENGTH];
+                in.readFully(digests);
+                FileRecord r = new FileRecord(size, modified, digests);
+                // a file whose chunks were lost in a crash is stored again
+                if (isComplete(r)) {
+                    files.put(rel, r);
+                }
+            }
+            // version 1 kept no directories
+            for (int n = version == 1 ? 0 : in.readInt(); n > 0; n--) {
+                directories.add(in.readUTF());
+            }
+        }
+    }
+
+    private boolean isComplete(FileRecord r) {
+        for (int i = 0; i < r.chunkCount(); i++) {
+            if (!chunks.containsKey(r.chunk(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // writes the manifest to a temporary file and moves it into place
+    private void saveManifest() throws IOException {
+        Path tmp = dir.resolve("files.idx.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileRecord> e : files.entrySet()) {
+                FileRecord r = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(r.size);
+                out.writeLong(r.modified);
+                out.writeInt(r.chunkCount());
+                out.write(r.digests);
+            }
+            out.writeInt(directories.size());
+            for (String d : directories) {
+                out.writeUTF(d);
+            }
+        }
+        Files.move(tmp, manifestPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String relativize(Path root, Path p) {
+        String rel = root.relativize(p).toString();
+        String sep = p.getFileSystem().getSeparator();
+        return sep.equals("/") ? rel : rel.replace(sep, "/");
+    }
+
+    private static final ThreadLocal<Worker> WORKER = ThreadLocal.withInitial(Worker::new);
+
+    /**
+     * Per-thread buffer and digest, reused for every file
+     */
+    private static final class Worker {
+
+        final MessageDigest digest;
+
+        private ByteBuffer buffer;
+
+        Worker() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        ByteBuffer buffer(int size) {
+            if (buffer == null || buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * The SHA-256 of a chunk, usable as a map key
+     */
+    private static final class ChunkId {
+
+        final byte[] digest;
+
+        private final int hash;
+
+        ChunkId(byte[] digest) {
+            this.digest = digest;
+            this.hash = (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8
+                    | (digest[3] & 0xFF);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChunkId && Arrays.equals(digest, ((ChunkId) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Where a chunk lives in the packs
+     */
+    private static final class Location {
+
+        final int pack;
+
+        final long offset;
+
+        final int length;
+
+        Location(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A stored file: its size, modified time and concatenated chunk digests
+     */
+    private static final class FileRecord {
+
+        final long size;
+
+        final long modified;
+
+        final byte[] digests;
+
+        FileRecord(long size, long modified, byte[] digests) {
+            this.size = size;
+            this.modified = modified;
+            this.digests = digests;
+        }
+
+        int chunkCount() {
+            return digests.length / DIGEST_LENGTH;
+        }
+
+        ChunkId chunk(int i) {
+            return new ChunkId(Arrays.copyOfRange(digests, i * DIGEST_LENGTH, (i + 1) * DIGEST_LENGTH));
+        }
+    }
+
+    /**
+     * A growable byte array
+     */
+    private static final class ByteArray {
+
+        private byte[] bytes = new byte[DIGEST_LENGTH * 16];
+
+        private int length = 0;
+
+        void append(byte[] b) {
+            if (length + b.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + b.length));
+            }
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.store;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Splits data into content-defined chunks with a Gear rolling hash, using the
+ * normalized chunking of FastCDC: a strict mask before the average size and a
+ * loose one after it, which keeps chunk sizes close to the average. Because
+ * cut points depend only on nearby content, an insertion early in a file
+ * only changes the chunks around it. Instances are immutable and can be
+ * shared between threads.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class ContentDefinedChunker {
+
+    /**
+     * Default minimum chunk size of 16KB
+     */
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+
+    /**
+     * Default average chunk size of 64KB
+     */
+    public static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+
+    /**
+     * Default maximum chunk size of 256KB
+     */
+    public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    // fixed seed, so cut points are stable across runs and versions
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x4A53796E63L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+
+    private final int averageSize;
+
+    private final int maxSize;
+
+    private final long strictMask;
+
+    private final long looseMask;
+
+    /**
+     * Constructor. Uses the default sizes.
+     */
+    public ContentDefinedChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param minSize
+     *            smallest chunk, except for the last one of a file
+     * @param averageSize
+     *            target chunk size, a power of 2
+     * @param maxSize
+     *            largest chunk
+     */
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+        if (Integer.bitCount(averageSize) != 1 || minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Need 0 < min <= average <= max, with average a power of 2");
+        }
+        this.minSize = minSize;
+        this.averageSize = averageSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.strictMask = spreadMask(bits + 2);
+        this.looseMask = spreadMask(Math.max(1, bits - 2));
+    }
+
+    /**
+     * @return the largest chunk this chunker produces
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Finds the end of the chunk that starts at off
+     * 
+     * @param buf
+     *            data
+     * @param off
+     *            start of the chunk
+     * @param len
+     *            bytes available from off
+     * @param eof
+     *            true if no more data follows the available bytes
+     * @return the length of the chunk, or -1 if more data is needed to decide
+     */
+    public int cut(ByteBuffer buf, int off, int len, boolean eof) {
+        if (len <= minSize) {
+            return eof ? len : -1;
+        }
+        int limit = Math.min(len, maxSize);
+        int normal = Math.min(limit, averageSize);
+        long h = 0L;
+        int i = minSize;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[buf.get(off + i) & 0xFF];
+            if ((h & strictMask) == 0L) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            h = (h << 1) + GEAR[buf.get(off + i) & 0xFF];
+            if ((h & looseMask) == 0L) {
+                return i + 1;
+            }
+        }
+        return limit == maxSize || eof ? limit : -1;
+    }
+
+    // a mask with the given number of bits, spread over the high half
+    private static long spreadMask(int bits) {
+        long mask = 0L;
+        for (int i = 0; i < bits; i++) {
+            mask |= 1L << (63 - i * 2);
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests the BidirectionalSyncer: one-sided changes, every ConflictPolicy,
+ * deletions against modifications, paths that are a file on one side and a
+ * directory on the other, and a rerun after a failed run. Run with the "test"
+ * Ant target; a failed check throws an AssertionError.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class BidirectionalSyncerTest {
+
+    private static final long T0 = 1_500_000_000_000L;
+
+    private static Path dir;
+
+    private BidirectionalSyncerTest() {
+    }
+
+    /**
+     * Runs the test
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             thrown on unexpected errors
+     */
+    public static void main(String[] args) throws Exception {
+        dir = Files.createTempDirectory("jsync-bidi");
+        try {
+            oneSided();
+            for (ConflictPolicy p : ConflictPolicy.values()) {
+                bothModified(p);
+            }
+            deleteAgainstModify();
+            fileBecomesDirectory();
+            directoryBecomesFile();
+            typeClashConflicts();
+            rerunAfterFailure();
+        } finally {
+            delete(dir);
+        }
+        System.out.println("BidirectionalSyncerTest OK");
+    }
+
+    // additions, modifications and deletions on either side are carried over
+    private static void oneSided() throws Exception {
+        Pair p = new Pair("one");
+        write(p.a.resolve("x/new.txt"), "added on a", T0);
+        write(p.b.resolve("b.txt"), "added on b", T0);
+        p.sync(ConflictPolicy.SKIP);
+        check(read(p.b.resolve("x/new.txt")).equals("added on a"), "addition on A reaches B");
+        check(read(p.a.resolve("b.txt")).equals("added on b"), "addition on B reaches A");
+
+        write(p.b.resolve("x/new.txt"), "modified on b", T0 + 5000L);
+        Files.delete(p.a.resolve("b.txt"));
+        p.sync(ConflictPolicy.SKIP);
+        check(read(p.a.resolve("x/new.txt")).equals("modified on b"), "modification on B reaches A");
+        check(!Files.exists(p.b.resolve("b.txt")), "deletion on A reaches B");
+        check(p.conflicts == 0, "no conflicts for one-sided changes");
+        check(tree(p.a).equals(tree(p.b)), "sides equal after one-sided changes");
+    }
+
+    // a file modified differently on both sides, under each policy
+    private static void bothModified(ConflictPolicy policy) throws Exception {
+        Pair p = new Pair("both-" + policy);
+        write(p.a.resolve("f.txt"), "base", T0);
+        p.sync(policy);
+        write(p.a.resolve("f.txt"), "newer on a", T0 + 20000L);
+        write(p.b.resolve("f.txt"), "older on b!", T0 + 10000L);
+        p.sync(policy);
+        check(p.conflicts == 1, policy + " reports the conflict");
+        String fa = read(p.a.resolve("f.txt"));
+        String fb = read(p.b.resolve("f.txt"));
+        switch (policy) {
+        case PREFER_A:
+        case PREFER_NEWER:
+            check(fa.equals("newer on a") && fb.equals("newer on a"), policy + " keeps A's version");
+            break;
+        case PREFER_B:
+            check(fa.equals("older on b!") && fb.equals("older on b!"), policy + " keeps B's version");
+            break;
+        case KEEP_BOTH:
+            check(fa.equals("newer on a") && fb.equals("newer on a"), policy + " keeps A's file under the name");
+            check(read(p.a.resolve("f.txt.conflict-b")).equals("older on b!")
+                    && read(p.b.resolve("f.txt.conflict-b")).equals("older on b!"), policy + " keeps B's file aside");
+            break;
+        case SKIP:
+        default:
+            check(fa.equals("newer on a") && fb.equals("older on b!"), policy + " leaves both alone");
+            p.sync(policy);
+            check(p.conflicts == 1, policy + " reports the conflict again");
+            return;
+        }
+        check(tree(p.a).equals(tree(p.b)), policy + " leaves equal sides");
+        p.sync(policy);
+        check(p.conflicts == 0 && p.copied == 0, policy + " is settled on the next run");
+    }
+
+    // a deletion on one side against a modification on the other
+    private static void deleteAgainstModify() throws Exception {
+        Pair p = new Pair("delmod-newer");
+        write(p.a.resolve("f.txt"), "base", T0);
+        p.sync(ConflictPolicy.PREFER_NEWER);
+        Files.delete(p.a.resolve("f.txt"));
+        write(p.b.resolve("f.txt"), "modified", T0 + 5000L);
+        p.sync(ConflictPolicy.PREFER_NEWER);
+        check(read(p.a.resolve("f.txt")).equals("modified"), "the modification wins over the deletion");
+
+        Pair q = new Pair("delmod-a");
+        write(q.a.resolve("f.txt"), "base", T0);
+        q.sync(ConflictPolicy.PREFER_A);
+        Files.delete(q.a.resolve("f.txt"));
+        write(q.b.resolve("f.txt"), "modified", T0 + 5000L);
+        q.sync(ConflictPolicy.PREFER_A);
+        check(!Files.exists(q.b.resolve("f.txt")), "PREFER_A carries the deletion over");
+    }
+
+    // a file replaced by a directory with contents on one side
+    private static void fileBecomesDirectory() throws Exception {
+        Pair p = new Pair("file-dir");
+        write(p.a.resolve("x"), "was a file", T0);
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        Files.delete(p.a.resolve("x"));
+        write(p.a.resolve("x/f"), "inside", T0);
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        check(read(p.b.resolve("x/f")).equals("inside"), "the directory replaces the file on B");
+        check(p.conflicts == 0, "a one-sided type change is no conflict");
+        check(tree(p.a).equals(tree(p.b)), "sides equal after the type change");
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        check(p.copied == 0 && p.deleted == 0, "the rerun has nothing to do");
+    }
+
+    // a directory replaced by a file on one side
+    private static void directoryBecomesFile() throws Exception {
+        Pair p = new Pair("dir-file");
+        write(p.a.resolve("x/f"), "inside", T0);
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        delete(p.a.resolve("x"));
+        write(p.a.resolve("x"), "now a file", T0);
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        check(read(p.b.resolve("x")).equals("now a file"), "the file replaces the directory on B");
+        check(tree(p.a).equals(tree(p.b)), "sides equal after the type change");
+    }
+
+    // a directory replaced by a file on A while B added to the directory
+    private static void typeClashConflicts() throws Exception {
+        Pair p = new Pair("clash-keep");
+        clash(p, ConflictPolicy.KEEP_BOTH);
+        check(p.conflicts == 1, "KEEP_BOTH reports the clash");
+        check(read(p.a.resolve("x/added")).equals("added on b") && read(p.b.resolve("x/added")).equals("added on b"),
+                "KEEP_BOTH keeps B's addition under the directory");
+        check(read(p.a.resolve("x.conflict-a")).equals("now a file")
+                && read(p.b.resolve("x.conflict-a")).equals("now a file"), "KEEP_BOTH keeps A's file aside");
+        check(tree(p.a).equals(tree(p.b)), "KEEP_BOTH leaves equal sides");
+
+        Pair q = new Pair("clash-a");
+        clash(q, ConflictPolicy.PREFER_A);
+        check(read(q.b.resolve("x")).equals("now a file"), "PREFER_A replaces B's directory");
+        check(tree(q.a).equals(tree(q.b)), "PREFER_A leaves equal sides");
+
+        Pair r = new Pair("clash-skip");
+        clash(r, ConflictPolicy.SKIP);
+        check(Files.isRegularFile(r.a.resolve("x")) && Files.isDirectory(r.b.resolve("x")), "SKIP leaves both alone");
+        r.sync(ConflictPolicy.SKIP);
+        check(r.conflicts == 1, "SKIP reports the clash again");
+    }
+
+    private static void clash(Pair p, ConflictPolicy policy) throws Exception {
+        write(p.a.resolve("x/f"), "inside", T0);
+        p.sync(policy);
+        delete(p.a.resolve("x"));
+        write(p.a.resolve("x"), "now a file", T0);
+        write(p.b.resolve("x/added"), "added on b", T0);
+        p.sync(policy);
+    }
+
+    // a run that fails halfway leaves sides that the next run completes
+    private static void rerunAfterFailure() throws Exception {
+        Pair p = new Pair("rerun");
+        for (int i = 0; i < 10; i++) {
+            write(p.a.resolve("d/f" + i), "file " + i, T0);
+        }
+        write(p.b.resolve("x"), "a file on b", T0);
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        Files.delete(p.a.resolve("x"));
+        write(p.a.resolve("x/f"), "a file on a", T0);
+        for (int i = 0; i < 10; i++) {
+            write(p.b.resolve("d/f" + i), "changed " + i, T0 + 5000L);
+        }
+        BidirectionalSyncer s = p.syncer(ConflictPolicy.KEEP_BOTH);
+        try {
+            s.synchronize((c, t, m) -> {
+                if (m.equals("d/f4")) {
+                    throw new IllegalStateException("stop");
+                }
+            });
+            check(false, "the run fails");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        check(tree(p.a).equals(tree(p.b)), "sides equal after the rerun");
+        check(read(p.a.resolve("d/f7")).equals("changed 7") && read(p.a.resolve("x/f")).equals("a file on a"),
+                "the rerun carries over every change");
+        p.sync(ConflictPolicy.KEEP_BOTH);
+        check(p.copied == 0 && p.conflicts == 0, "the run after that has nothing to do");
+    }
+
+    /**
+     * Two directories and a state file, with the counts of the last run
+     */
+    private static final class Pair {
+
+        final Path a;
+
+        final Path b;
+
+        final Path state;
+
+        int conflicts;
+
+        int copied;
+
+        int deleted;
+
+        Pair(String name) throws IOException {
+            Path root = dir.resolve(name);
+            this.a = Files.createDirectories(root.resolve("a"));
+            this.b = Files.createDirectories(root.resolve("b"));
+            this.state = root.resolve("state");
+        }
+
+        BidirectionalSyncer syncer(ConflictPolicy policy) {
+            return new BidirectionalSyncer(a.toFile(), b.toFile(), state.toFile(), null, policy);
+        }
+
+        void sync(ConflictPolicy policy) throws IOException {
+            BidirectionalSyncer s = syncer(policy);
+            SyncResults r = s.synchronize(null);
+            conflicts = s.getConflicts().size();
+            copied = r.getNumFilesCopied();
+            deleted = r.getNumFilesDeleted();
+        }
+    }
+
+    private static void write(Path p, String content, long modified) throws IOException {
+        Files.createDirectories(p.getParent());
+        Files.write(p, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(p, FileTime.fromMillis(modified));
+    }
+
+    private static String read(Path p) throws IOException {
+        return new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> tree(Path root) throws IOException {
+        Map<String, String> tree = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                tree.put(root.relativize(d).toString(), "/");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                tree.put(root.relativize(f).toString(), read(f));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return tree;
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
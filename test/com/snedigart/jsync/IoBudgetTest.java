@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the IoBudget token bucket on a simulated clock, in particular that a
+ * long idle time at a high rate refills the bucket instead of overflowing
+ * and that a debt of more than one second is not charged twice.
+ * Run with the "test" Ant target; a failed check throws an AssertionError.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class IoBudgetTest {
+
+    private IoBudgetTest() {
+    }
+
+    /**
+     * Runs the test
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             thrown on unexpected errors
+     */
+    public static void main(String[] args) throws Exception {
+        for (long rate : new long[] { 1_000_000_000L, 100_000_000_000L, Long.MAX_VALUE / 2 }) {
+            longIdle(rate);
+        }
+        overdraw();
+        largeDebt();
+        System.out.println("IoBudgetTest OK");
+    }
+
+    // after a long idle time a full bucket is available at once
+    private static void longIdle(long rate) throws Exception {
+        AtomicLong clock = new AtomicLong(0L);
+        IoBudget budget = new IoBudget(rate, clock::get);
+        budget.acquire(rate);
+        for (long idle : new long[] { 10L, 100L, 100_000L }) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(idle));
+            long start = System.nanoTime();
+            budget.acquire(rate);
+            long waited = System.nanoTime() - start;
+            check(waited < TimeUnit.MILLISECONDS.toNanos(200),
+                    "no wait after " + idle + "s idle at " + rate + " B/s, waited " + waited + "ns");
+        }
+    }
+
+    // taking more than is available waits for the shortfall
+    private static void overdraw() throws Exception {
+        AtomicLong clock = new AtomicLong(0L);
+        IoBudget budget = new IoBudget(1_000_000_000L, clock::get);
+        long start = System.nanoTime();
+        budget.acquire(1_300_000_000L);
+        long waited = System.nanoTime() - start;
+        check(waited >= TimeUnit.MILLISECONDS.toNanos(250) && waited < TimeUnit.SECONDS.toNanos(2),
+                "waits about 0.3s for a 0.3s shortfall, waited " + waited + "ns");
+    }
+
+    // a debt of more than one second is paid off once, not charged again
+    private static void largeDebt() throws Exception {
+        AtomicLong clock = new AtomicLong(0L);
+        IoBudget budget = new IoBudget(1_000_000_000L, clock::get);
+        budget.acquire(2_500_000_000L);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1500));
+        long start = System.nanoTime();
+        budget.acquire(1L);
+        long waited = System.nanoTime() - start;
+        check(waited < TimeUnit.MILLISECONDS.toNanos(200), "no wait once a 1.5s debt is paid, waited " + waited + "ns");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Tests the ShardedSyncer with several workers on one control directory, the
+ * takeover of expired leases and the per-unit change log and digest files.
+ * Run with the "test" Ant target; a failed check throws an AssertionError.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class ShardedSyncerTest {
+
+    private static final int SHARDS = 4;
+
+    private ShardedSyncerTest() {
+    }
+
+    /**
+     * Runs the test
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             thrown on unexpected errors
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("jsync-sharded");
+        try {
+            Path source = dir.resolve("source");
+            for (int i = 0; i < 6; i++) {
+                for (int j = 0; j < 5; j++) {
+                    write(source.resolve("d" + i).resolve("sub").resolve("f" + j), "file " + i + "/" + j);
+                }
+            }
+            write(source.resolve("loose.txt"), "loose");
+
+            workers(source, dir.resolve("t1"), dir.resolve("c1"));
+            takeover(source, dir.resolve("t2"), dir.resolve("c2"));
+            unitFiles(source, dir.resolve("t3"), dir.resolve("c3"), dir.resolve("out"));
+        } finally {
+            delete(dir);
+        }
+        System.out.println("ShardedSyncerTest OK");
+    }
+
+    // three workers share the shards and together sync the whole tree
+    private static void workers(Path source, Path target, Path control) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        int[] synced = new int[1];
+        for (int w = 0; w < 3; w++) {
+            ShardedSyncer syncer = builder(source, target, control).workerId("w" + w).build();
+            Thread t = new Thread(() -> {
+                try {
+                    syncer.synchronize(null);
+                    synchronized (synced) {
+                        synced[0] += syncer.getShardsSynced();
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        check(errors.isEmpty(), "workers succeed: " + errors);
+        check(synced[0] == SHARDS, "every shard synced once, got " + synced[0]);
+        check(tree(source).equals(tree(target)), "target matches the source");
+        ShardedSyncer late = builder(source, target, control).workerId("late").build();
+        late.synchronize(null);
+        check(late.getShardsSynced() == 0, "finished shards are not synced again, got " + late.getShardsSynced());
+    }
+
+    // leases left behind by a dead worker are taken over once expired
+    private static void takeover(Path source, Path target, Path control) throws Exception {
+        Files.createDirectories(control.resolve("leases"));
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Properties p = new Properties();
+            p.setProperty("owner", "dead");
+            p.setProperty("generation", "3");
+            p.setProperty("expires", Long.toString(System.currentTimeMillis() - 1000L));
+            try (OutputStream out = Files.newOutputStream(control.resolve("leases").resolve(Integer.toString(shard)))) {
+                p.store(out, null);
+            }
+        }
+        ShardedSyncer syncer = builder(source, target, control).workerId("alive").build();
+        syncer.synchronize(null);
+        check(syncer.getShardsSynced() == SHARDS, "all expired shards taken over");
+        check(tree(source).equals(tree(target)), "target matches the source after takeover");
+        try (Stream<Path> leases = Files.list(control.resolve("leases"))) {
+            check(leases.count() == 0L, "leases released");
+        }
+    }
+
+    // every unit writes its own change log and digest next to the configured ones
+    private static void unitFiles(Path source, Path target, Path control, Path out) throws Exception {
+        Files.createDirectories(out);
+        SyncOptions options = new SyncOptions.SyncOptionsBuilder()
+                .changeLog(out.resolve("changes.log").toFile())
+                .digestFile(out.resolve("digest").toFile())
+                .build();
+        ShardedSyncer syncer = builder(source, target, control).options(options).workerId("solo").build();
+        syncer.synchronize(null);
+        check(tree(source).equals(tree(target)), "target matches the source with output files");
+        check(!Files.exists(out.resolve("changes.log")) && !Files.exists(out.resolve("digest")),
+                "shared output files are not written");
+        for (int i = 0; i < 6; i++) {
+            check(Files.isRegularFile(out.resolve("changes.log.unit-d" + i)), "change log of unit d" + i);
+            check(Files.isRegularFile(out.resolve("digest.unit-d" + i)), "digest of unit d" + i);
+            String log = new String(Files.readAllBytes(out.resolve("changes.log.unit-d" + i)),
+                    StandardCharsets.UTF_8);
+            check(log.contains("f0") && !log.contains("d" + ((i + 1) % 6) + "/"), "unit log covers its unit only");
+        }
+        int shardLogs = 0;
+        for (int shard = 0; shard < SHARDS; shard++) {
+            Path log = out.resolve("changes.log.shard-" + shard);
+            if (Files.exists(log)) {
+                shardLogs++;
+                check(new String(Files.readAllBytes(log), StandardCharsets.UTF_8).contains("loose.txt"),
+                        "shard log names the loose file");
+            }
+        }
+        check(shardLogs == 1, "one shard holds the loose file, got " + shardLogs);
+    }
+
+    private static ShardedSyncer.ShardedSyncerBuilder builder(Path source, Path target, Path control) {
+        return new ShardedSyncer.ShardedSyncerBuilder(source.toFile(), target.toFile(), control.toFile())
+                .shards(SHARDS).leaseMillis(2000L);
+    }
+
+    private static void write(Path p, String content) throws IOException {
+        Files.createDirectories(p.getParent());
+        Files.write(p, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, String> tree(Path root) throws IOException {
+        Map<String, String> tree = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                tree.put(root.relativize(d).toString(), "/");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                tree.put(root.relativize(f).toString(), new String(Files.readAllBytes(f), StandardCharsets.UTF_8));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return tree;
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.remote;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.snedigart.jsync.SyncOptions;
+import com.snedigart.jsync.SyncResults;
+
+/**
+ * End-to-end test of the RemoteSyncer against a SyncServer over loopback.
+ * Run with the "test" Ant target; a failed check throws an AssertionError.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class RemoteSyncTest {
+
+    private static final String SECRET = "test-secret";
+
+    private RemoteSyncTest() {
+    }
+
+    /**
+     * Runs the test
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             thrown on unexpected errors
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("jsync-remote-test");
+        try {
+            Path src = dir.resolve("src");
+            Path dst = dir.resolve("dst");
+            Path outside = dir.resolve("outside");
+            write(src.resolve("a.txt"), "alpha");
+            write(src.resolve("d1/d2/b.txt"), "bravo");
+            write(src.resolve("d1/clash"), "file in source");
+            write(src.resolve("link.txt"), "replaces the link");
+            write(dst.resolve("stale/old.txt"), "stale");
+            write(dst.resolve("d1/clash/inner.txt"), "directory in target");
+            write(outside.resolve("secret.txt"), "untouched");
+            Files.createSymbolicLink(dst.resolve("link.txt"), outside.resolve("secret.txt"));
+            Files.createSymbolicLink(dst.resolve("dangling"), outside.resolve("missing.txt"));
+
+            try (SyncServer server = new SyncServer(dst.toFile(), 0, SECRET)) {
+                server.start();
+                InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+
+                SyncResults r = new RemoteSyncer(src.toFile(), address, SECRET, null, true).synchronize(null);
+                check(tree(src).equals(tree(dst)), "target matches source after the first sync");
+                check(r.getNumFilesCopied() == 4, "four files copied, got " + r.getNumFilesCopied());
+                check(read(outside.resolve("secret.txt")).equals("untouched"), "link target left alone");
+                check(!Files.isSymbolicLink(dst.resolve("link.txt")), "link replaced by a file");
+                check(!Files.isSymbolicLink(dst.resolve("dangling")), "dangling link deleted");
+
+                r = new RemoteSyncer(src.toFile(), address, SECRET, null).synchronize(null);
+                check(r.getNumFilesCopied() == 0 && r.getNumFilesDeleted() == 0, "second sync is a no-op");
+
+                try {
+                    new RemoteSyncer(src.toFile(), address, "wrong", null).synchronize(null);
+                    check(false, "wrong secret refused");
+                } catch (IOException e) {
+                    check(String.valueOf(e.getMessage()).contains("Authentication failed"),
+                            "wrong secret refused, got " + e.getMessage());
+                }
+
+                SyncOptions sparse = new SyncOptions.SyncOptionsBuilder().sparseCopy(true).build();
+                try {
+                    new RemoteSyncer(src.toFile(), address, SECRET, sparse).synchronize(null);
+                    check(false, "unsupported option refused");
+                } catch (IOException e) {
+                    check(e.getMessage().contains("sparseCopy"), "unsupported option named, got " + e.getMessage());
+                }
+            }
+
+            // a link to a directory outside the root cannot be written through
+            Files.createSymbolicLink(dst.resolve("escape"), outside);
+            try {
+                Protocol.resolveNoLinks(dst, "escape/secret.txt", new HashSet<>());
+                check(false, "path through a link refused");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                Protocol.resolve(dst, "../outside/secret.txt");
+                check(false, "path out of the root refused");
+            } catch (IOException e) {
+                // expected
+            }
+            System.out.println("RemoteSyncTest OK");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static void write(Path p, String content) throws IOException {
+        Files.createDirectories(p.getParent());
+        Files.write(p, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path p) throws IOException {
+        return new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+    }
+
+    // relative path to content, or "/" for directories
+    private static Map<String, String> tree(Path root) throws IOException {
+        Map<String, String> tree = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                tree.put(root.relativize(d).toString(), "/");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                tree.put(root.relativize(f).toString(), read(f));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return tree;
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Tyler Snedigar.  All Rights Reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 3 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 3 for more details.
+ */
+package com.snedigart.jsync.store;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.snedigart.jsync.SyncOptions;
+import com.snedigart.jsync.SyncResults;
+import com.snedigart.jsync.filter.FileExtensionSyncFilter;
+
+/**
+ * Tests a store and restore round trip through the ChunkStore, including
+ * empty directories, deduplication, reopening the store, and files that a
+ * tightened filter excludes. Run with the "test" Ant target; a failed check
+ * throws an AssertionError.
+ * 
+ * @author Tyler Snedigar
+ * @version 1.0
+ */
+public final class ChunkStoreTest {
+
+    private ChunkStoreTest() {
+    }
+
+    /**
+     * Runs the test
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             thrown on unexpected errors
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("jsync-store");
+        try {
+            Path source = dir.resolve("source");
+            Random random = new Random(36);
+            byte[] big = new byte[1024 * 1024];
+            random.nextBytes(big);
+            Files.createDirectories(source.resolve("data"));
+            Files.write(source.resolve("data/big.bin"), big);
+            big[1000] ^= 1;
+            Files.write(source.resolve("data/big-copy.bin"), big);
+            Files.write(source.resolve("notes.txt"), "notes".getBytes(StandardCharsets.UTF_8));
+            Files.write(source.resolve("data/run.log"), "log".getBytes(StandardCharsets.UTF_8));
+            Files.createDirectories(source.resolve("empty/nested"));
+            Files.write(source.resolve("data/empty.bin"), new byte[0]);
+
+            Path store = dir.resolve("store");
+            SyncOptions all = new SyncOptions.SyncOptionsBuilder().build();
+            try (ChunkStore s = new ChunkStore(store.toFile())) {
+                SyncResults r = s.synchronize(source.toFile(), all, null);
+                check(r.getNumFilesCopied() == 5, "every file stored, got " + r.getNumFilesCopied());
+                check(s.getStoredBytes() < s.getLogicalBytes(), "near-identical files share chunks");
+                s.restore(dir.resolve("restored").toFile(), null);
+            }
+            check(tree(source).equals(tree(dir.resolve("restored"))), "restore matches the source");
+            check(Files.isDirectory(dir.resolve("restored/empty/nested")), "empty directories restored");
+
+            // a tightened filter keeps the excluded files in the store
+            SyncOptions noLogs = new SyncOptions.SyncOptionsBuilder().deleteUnmatchedTargets(true)
+                    .addExclusionFilter(new FileExtensionSyncFilter("log")).build();
+            Files.delete(source.resolve("notes.txt"));
+            try (ChunkStore s = new ChunkStore(store.toFile())) {
+                SyncResults r = s.synchronize(source.toFile(), noLogs, null);
+                check(r.getNumFilesCopied() == 0, "unchanged files are not stored again");
+                check(r.getNumFilesDeleted() == 1, "only the removed source is dropped, got " + r.getNumFilesDeleted());
+                check(s.getFileCount() == 4, "the filtered file stays, got " + s.getFileCount());
+            }
+
+            // the store reopens with the same contents
+            Files.delete(source.resolve("empty/nested"));
+            try (ChunkStore s = new ChunkStore(store.toFile())) {
+                s.synchronize(source.toFile(), all, null);
+                s.restore(dir.resolve("again").toFile(), null);
+            }
+            check(tree(source).equals(tree(dir.resolve("again"))), "second restore matches the source");
+            check(!Files.exists(dir.resolve("again/empty/nested")), "removed directories are dropped");
+        } finally {
+            delete(dir);
+        }
+        System.out.println("ChunkStoreTest OK");
+    }
+
+    private static Map<String, String> tree(Path root) throws IOException {
+        Map<String, String> tree = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                tree.put(root.relativize(d).toString(), "/");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                tree.put(root.relativize(f).toString(),
+                        attrs.size() + " " + attrs.lastModifiedTime().toMillis() + " "
+                                + Integer.toHexString(Arrays.hashCode(Files.readAllBytes(f))));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return tree;
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                Files.delete(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+}